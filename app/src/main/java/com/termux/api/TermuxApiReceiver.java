@@ -9,6 +9,7 @@ import android.provider.Settings;
 import android.widget.Toast;
 
 import com.termux.api.apis.AudioAPI;
+import com.termux.api.apis.AudioPlayAPI;
 import com.termux.api.apis.BatteryStatusAPI;
 import com.termux.api.apis.BrightnessAPI;
 import com.termux.api.apis.CallLogAPI;
@@ -87,6 +88,9 @@ public class TermuxApiReceiver extends BroadcastReceiver {
             case "AudioInfo":
                 AudioAPI.onReceive(this, context, intent);
                 break;
+            case "AudioPlay":
+                AudioPlayAPI.onReceive(this, intent);
+                break;
             case "BatteryStatus":
                 BatteryStatusAPI.onReceive(this, context, intent);
                 break;
@@ -0,0 +1,319 @@
+package com.termux.api.apis;
+
+import android.content.Intent;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.JsonWriter;
+
+import com.termux.api.TermuxApiReceiver;
+import com.termux.api.util.ResultReturner;
+import com.termux.shared.logger.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * API that plays raw PCM or WAV audio read from the input with an {@link AudioTrack} in streaming
+ * mode, so that audio generated by a program can be played as it is produced, without writing a
+ * file first.
+ *
+ * Raw PCM is played with the `srate` (default `44100`), `channels` (`1` or `2`, default `1`) and
+ * `encoding` (`pcm8`, `pcm16` or `float`, default `pcm16`) extras, while the format of WAV input,
+ * which is detected by its `RIFF` header, is read from the header. Samples are little endian.
+ *
+ * The input is read into a reused buffer of `buffer-size` bytes (default 20ms of audio) and written
+ * to the track as it arrives. If the `report` extra is passed, the played frames, the number of
+ * underruns and the current output latency are written as a JSON object on a line every `report`
+ * milliseconds, and they are always written once the input ends and all audio has been played.
+ *
+ * - https://developer.android.com/reference/android/media/AudioTrack
+ */
+public class AudioPlayAPI {
+
+    private static final String LOG_TAG = "AudioPlayAPI";
+
+    static final int DEFAULT_SAMPLE_RATE = 44100;
+    /** The default buffer duration in milliseconds. */
+    static final int DEFAULT_BUFFER_MS = 20;
+
+    public static void onReceive(TermuxApiReceiver apiReceiver, final Intent intent) {
+        Logger.logDebug(LOG_TAG, "onReceive");
+
+        ResultReturner.returnData(apiReceiver, intent, new ResultReturner.WithInput() {
+            @Override
+            public void writeResult(PrintWriter out) throws Exception {
+                PushbackInputStream input = new PushbackInputStream(in, 4);
+                PcmFormat format;
+                try {
+                    format = readFormat(input, intent);
+                } catch (IllegalArgumentException | IOException e) {
+                    out.println("Error: " + e.getMessage());
+                    return;
+                }
+                play(input, format, intent, out);
+            }
+        });
+    }
+
+    /**
+     * The format of the PCM to play.
+     */
+    static class PcmFormat {
+        int sampleRate;
+        int channels;
+        int encoding;
+
+        int getFrameSize() {
+            switch (encoding) {
+                case AudioFormat.ENCODING_PCM_8BIT:
+                    return channels;
+                case AudioFormat.ENCODING_PCM_FLOAT:
+                    return channels * 4;
+                default:
+                    return channels * 2;
+            }
+        }
+    }
+
+    /**
+     * Read the format from the WAV header of {@code input} if it has one, otherwise from the
+     * extras of {@code intent}.
+     */
+    static PcmFormat readFormat(PushbackInputStream input, Intent intent) throws IOException {
+        PcmFormat format = new PcmFormat();
+
+        byte[] magic = new byte[4];
+        int read = readFully(input, magic, 4);
+        if (read == 4 && "RIFF".equals(new String(magic, StandardCharsets.US_ASCII))) {
+            readWavHeader(input, format);
+        } else {
+            if (read > 0)
+                input.unread(magic, 0, read);
+
+            format.sampleRate = intent.getIntExtra("srate", DEFAULT_SAMPLE_RATE);
+            format.channels = intent.getIntExtra("channels", 1);
+            String encodingName = intent.hasExtra("encoding") ? intent.getStringExtra("encoding") : "pcm16";
+            switch (encodingName.toLowerCase()) {
+                case "pcm8":
+                    format.encoding = AudioFormat.ENCODING_PCM_8BIT;
+                    break;
+                case "pcm16":
+                    format.encoding = AudioFormat.ENCODING_PCM_16BIT;
+                    break;
+                case "float":
+                    format.encoding = AudioFormat.ENCODING_PCM_FLOAT;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported encoding '" + encodingName + "' - only 'pcm8', 'pcm16' and 'float' supported");
+            }
+        }
+
+        if (format.channels != 1 && format.channels != 2)
+            throw new IllegalArgumentException("Unsupported channel count " + format.channels + " - only 1 and 2 supported");
+        if (format.sampleRate <= 0)
+            throw new IllegalArgumentException("Invalid sample rate " + format.sampleRate);
+        return format;
+    }
+
+    /**
+     * Read the WAV header after the `RIFF` magic up to the start of the samples of the `data` chunk.
+     *
+     * - http://soundfile.sapp.org/doc/WaveFormat
+     */
+    static void readWavHeader(InputStream input, PcmFormat format) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        // Skip the RIFF size and read the WAVE format.
+        readChunk(input, header, 8);
+        header.getInt();
+        if (header.getInt() != 0x45564157) // "WAVE"
+            throw new IOException("Unsupported RIFF format, only WAVE supported");
+
+        boolean hasFormat = false;
+        while (true) {
+            readChunk(input, header, 8);
+            int chunkId = header.getInt();
+            long chunkSize = header.getInt() & 0xFFFFFFFFL;
+
+            if (chunkId == 0x20746d66) { // "fmt "
+                if (chunkSize < 16)
+                    throw new IOException("Invalid WAV fmt chunk");
+                readChunk(input, header, 16);
+                int audioFormat = header.getShort() & 0xFFFF;
+                format.channels = header.getShort() & 0xFFFF;
+                format.sampleRate = header.getInt();
+                header.getInt(); // byte rate
+                header.getShort(); // block align
+                int bitsPerSample = header.getShort() & 0xFFFF;
+
+                if (audioFormat == 1 && bitsPerSample == 8) {
+                    format.encoding = AudioFormat.ENCODING_PCM_8BIT;
+                } else if (audioFormat == 1 && bitsPerSample == 16) {
+                    format.encoding = AudioFormat.ENCODING_PCM_16BIT;
+                } else if (audioFormat == 3 && bitsPerSample == 32) {
+                    format.encoding = AudioFormat.ENCODING_PCM_FLOAT;
+                } else {
+                    throw new IOException("Unsupported WAV format " + audioFormat + " with " + bitsPerSample + " bits per sample");
+                }
+                skip(input, chunkSize - 16 + (chunkSize & 1));
+                hasFormat = true;
+            } else if (chunkId == 0x61746164) { // "data"
+                if (!hasFormat)
+                    throw new IOException("WAV data chunk before fmt chunk");
+                // The data chunk is played until the end of the input, as streamed WAV often has no valid size.
+                return;
+            } else {
+                skip(input, chunkSize + (chunkSize & 1));
+            }
+        }
+    }
+
+    private static void readChunk(InputStream input, ByteBuffer header, int length) throws IOException {
+        header.clear();
+        if (readFully(input, header.array(), length) < length)
+            throw new IOException("Unexpected end of WAV header");
+        header.limit(length);
+    }
+
+    private static void skip(InputStream input, long length) throws IOException {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            if (skipped <= 0) {
+                if (input.read() < 0)
+                    throw new IOException("Unexpected end of WAV header");
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private static int readFully(InputStream input, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = input.read(buffer, total, length - total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    static void play(InputStream input, PcmFormat format, Intent intent, PrintWriter out) throws IOException {
+        int channelMask = format.channels == 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+        int minBufferSize = AudioTrack.getMinBufferSize(format.sampleRate, channelMask, format.encoding);
+        if (minBufferSize <= 0) {
+            out.println("Error: Unsupported sample rate " + format.sampleRate + " for " + format.channels + " channels");
+            return;
+        }
+
+        int frameSize = format.getFrameSize();
+        int requestedSize = intent.getIntExtra("buffer-size", format.sampleRate * DEFAULT_BUFFER_MS / 1000 * frameSize);
+        int bufferSize = Math.max(frameSize, requestedSize - requestedSize % frameSize);
+        int reportInterval = Math.max(0, intent.getIntExtra("report", 0));
+
+        AudioTrack.Builder builder = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setSampleRate(format.sampleRate)
+                        .setChannelMask(channelMask)
+                        .setEncoding(format.encoding)
+                        .build())
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                // The track buffer must hold a few reads, so that a slow writer does not underrun.
+                .setBufferSizeInBytes(Math.max(minBufferSize, bufferSize * 4));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && intent.getBooleanExtra("low-latency", false))
+            builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+
+        AudioTrack track = builder.build();
+        try {
+            if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+                out.println("Error: Failed to initialize AudioTrack");
+                return;
+            }
+
+            ReadableByteChannel channel = Channels.newChannel(input);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+            AudioTimestamp timestamp = new AudioTimestamp();
+            long framesWritten = 0;
+            long nextReport = reportInterval > 0 ? SystemClock.elapsedRealtime() + reportInterval : Long.MAX_VALUE;
+
+            track.play();
+            while (channel.read(buffer) >= 0) {
+                // Only write whole frames, and keep the rest for the next write.
+                int frames = buffer.position() / frameSize;
+                if (frames > 0) {
+                    buffer.flip();
+                    buffer.limit(frames * frameSize);
+                    while (buffer.hasRemaining()) {
+                        int written = track.write(buffer, buffer.remaining(), AudioTrack.WRITE_BLOCKING);
+                        if (written < 0)
+                            throw new IOException("AudioTrack write error " + written);
+                    }
+                    buffer.limit(buffer.capacity());
+                    buffer.compact();
+                    framesWritten += frames;
+                }
+
+                if (SystemClock.elapsedRealtime() >= nextReport) {
+                    writeReport(out, track, timestamp, format, framesWritten, false);
+                    nextReport += reportInterval;
+                }
+            }
+
+            // Let the track play what was written before stopping it, as the head position is reset
+            // once it is stopped, so the final report is also written while it is still playing.
+            long timeout = SystemClock.elapsedRealtime() + 1000 + (long) track.getBufferSizeInFrames() * 1000 / format.sampleRate;
+            while ((track.getPlaybackHeadPosition() & 0xFFFFFFFFL) < framesWritten && SystemClock.elapsedRealtime() < timeout) {
+                SystemClock.sleep(10);
+            }
+            writeReport(out, track, timestamp, format, framesWritten, true);
+            track.stop();
+        } finally {
+            track.release();
+        }
+    }
+
+    /**
+     * Write the played frames, underruns and output latency as a JSON object on a line.
+     */
+    private static void writeReport(PrintWriter out, AudioTrack track, AudioTimestamp timestamp,
+                                     PcmFormat format, long framesWritten, boolean finished) throws IOException {
+        long playedFrames;
+        if (track.getTimestamp(timestamp)) {
+            // Extrapolate the frame presented at the timestamp to now.
+            long elapsedNanos = System.nanoTime() - timestamp.nanoTime;
+            playedFrames = timestamp.framePosition + elapsedNanos * format.sampleRate / 1000000000L;
+        } else {
+            playedFrames = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        }
+        playedFrames = Math.min(playedFrames, framesWritten);
+
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("frames_written").value(framesWritten);
+        writer.name("frames_played").value(playedFrames);
+        writer.name("underruns").value(track.getUnderrunCount());
+        writer.name("latency_ms").value((framesWritten - playedFrames) * 1000 / format.sampleRate);
+        writer.name("buffer_frames").value(track.getBufferSizeInFrames());
+        writer.name("finished").value(finished);
+        writer.endObject();
+        writer.flush();
+        out.println();
+        out.flush();
+        if (out.checkError())
+            throw new IOException("Failed to write report");
+    }
+
+}
@@ -4,75 +4,283 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.net.Uri;
 import android.provider.CallLog;
 import android.util.JsonWriter;
 
+import androidx.annotation.Nullable;
+
+import com.termux.api.util.ContentChangeTracker;
 import com.termux.api.util.ResultReturner;
+import com.termux.api.util.TimestampFormatter;
 import com.termux.shared.logger.Logger;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /**
  * API that allows you to get call log history information
+ *
+ * Calls can be filtered with the `types`, `number`, `date-from` and `date-to` extras, which are
+ * pushed down into the provider query. If the `after` extra is passed, calls with an `_id` greater
+ * than it are streamed forward in ascending `_id` order, so that the whole call log can be dumped
+ * in pages by passing the `_id` of the last returned call. If the `raw` extra is passed, `date` is
+ * written as epoch milliseconds and `duration` as seconds.
  */
 public class CallLogAPI {
 
     private static final String LOG_TAG = "CallLogAPI";
 
+    /** The columns read by {@link #writeCall}, so that unused columns are not sent over the binder. */
+    private static final String[] CALL_PROJECTION = {CallLog.Calls._ID, CallLog.Calls.CACHED_NAME,
+            CallLog.Calls.NUMBER, CallLog.Calls.DATE, CallLog.Calls.DURATION, CallLog.Calls.TYPE,
+            CallLog.Calls.PHONE_ACCOUNT_ID};
+
     public static void onReceive(final Context context, final Intent intent) {
         Logger.logDebug(LOG_TAG, "onReceive");
 
         final int offset = intent.getIntExtra("offset", 0);
         final int limit = intent.getIntExtra("limit", 50);
 
+        // If `since` is passed, only calls with an `_id` greater than it are returned, see `getCallLogsSince()`.
+        final boolean deltaSync = intent.hasExtra("since");
+        final long since = intent.getLongExtra("since", 0);
+        final String changeToken = intent.getStringExtra("change-token");
+
+        final boolean keysetPaging = intent.hasExtra("after");
+        final long after = intent.getLongExtra("after", 0);
+
+        // Write `date` as epoch milliseconds and `duration` as seconds instead of formatted strings.
+        final boolean raw = intent.getBooleanExtra("raw", false);
+        // Write `date` as epoch milliseconds instead of a formatted string.
+        final boolean epochMillis = raw || intent.getBooleanExtra("epoch-millis", false);
+
         ResultReturner.returnData(context, intent, new ResultReturner.ResultJsonWriter() {
             public void writeJson(JsonWriter out) throws Exception {
-                getCallLogs(context, out, offset, limit);
+                // Invalid filter extras are returned as an error instead of failing the call.
+                final List<String> selectionArgs = new ArrayList<>();
+                final String selection;
+                try {
+                    selection = getFilterSelection(intent, selectionArgs);
+                } catch (IllegalArgumentException e) {
+                    out.beginObject().name("API_ERROR").value(e.getMessage()).endObject();
+                    return;
+                }
+
+                TimestampFormatter timestampFormatter = new TimestampFormatter(epochMillis);
+                if (deltaSync) {
+                    getCallLogsSince(context, out, timestampFormatter, raw, selection, selectionArgs, since, changeToken, limit);
+                } else if (keysetPaging) {
+                    getCallLogsAfter(context, out, timestampFormatter, raw, selection, selectionArgs, after, limit);
+                } else {
+                    getCallLogs(context, out, timestampFormatter, raw, selection, selectionArgs, offset, limit);
+                }
             }
         });
 
     }
 
-    private static void getCallLogs(Context context, JsonWriter out, int offset, int limit) throws IOException {
+    /**
+     * Get the selection for the `types`, `number`, `date-from` and `date-to` filter extras, adding
+     * their arguments to {@code selectionArgs}. Returns `null` if there are no filters.
+     *
+     * @throws IllegalArgumentException If a `types` value is invalid.
+     */
+    @Nullable
+    private static String getFilterSelection(Intent intent, List<String> selectionArgs) {
+        StringBuilder selection = new StringBuilder();
+
+        String value = intent.getStringExtra("types");
+        if (value != null && !value.isEmpty()) {
+            selection.append(CallLog.Calls.TYPE).append(" IN (");
+            String[] typeNames = value.split(",");
+            for (int i = 0; i < typeNames.length; i++) {
+                selection.append(i == 0 ? "" : ",").append(getCallType(typeNames[i].trim()));
+            }
+            selection.append(")");
+        }
+
+        value = intent.getStringExtra("number");
+        if (value != null && !value.isEmpty()) {
+            appendAnd(selection).append(CallLog.Calls.NUMBER).append(" LIKE ?");
+            selectionArgs.add(value);
+        }
+
+        long dateFrom = intent.getLongExtra("date-from", -1);
+        if (dateFrom >= 0) {
+            appendAnd(selection).append(CallLog.Calls.DATE).append(" >= ?");
+            selectionArgs.add(String.valueOf(dateFrom));
+        }
+
+        long dateTo = intent.getLongExtra("date-to", -1);
+        if (dateTo >= 0) {
+            appendAnd(selection).append(CallLog.Calls.DATE).append(" < ?");
+            selectionArgs.add(String.valueOf(dateTo));
+        }
+
+        return selection.length() == 0 ? null : selection.toString();
+    }
+
+    private static StringBuilder appendAnd(StringBuilder selection) {
+        if (selection.length() > 0) selection.append(" AND ");
+        return selection;
+    }
+
+    private static void getCallLogs(Context context, JsonWriter out, TimestampFormatter timestampFormatter, boolean raw,
+                                    String selection, List<String> selectionArgs,
+                                    int offset, int limit) throws IOException {
         ContentResolver contentResolver = context.getContentResolver();
 
         try (Cursor cur = contentResolver.query(CallLog.Calls.CONTENT_URI.buildUpon().
                 appendQueryParameter(CallLog.Calls.LIMIT_PARAM_KEY, String.valueOf(limit)).
                 appendQueryParameter(CallLog.Calls.OFFSET_PARAM_KEY, String.valueOf(offset))
-                .build(), null, null, null, "date DESC")) {
+                .build(), CALL_PROJECTION, selection, toArgsArray(selectionArgs), "date DESC")) {
             cur.moveToLast();
 
-            int nameIndex = cur.getColumnIndex(CallLog.Calls.CACHED_NAME);
-            int numberIndex = cur.getColumnIndex(CallLog.Calls.NUMBER);
-            int dateIndex = cur.getColumnIndex(CallLog.Calls.DATE);
-            int durationIndex = cur.getColumnIndex(CallLog.Calls.DURATION);
-            int callTypeIndex = cur.getColumnIndex(CallLog.Calls.TYPE);
-            int simTypeIndex = cur.getColumnIndex(CallLog.Calls.PHONE_ACCOUNT_ID);
-
-            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+            CallColumns columns = new CallColumns(cur);
             out.beginArray();
 
             for (int j = 0, count = cur.getCount(); j < count; ++j) {
-                out.beginObject();
-
-                out.name("name").value(getCallerNameString(cur.getString(nameIndex)));
-                out.name("phone_number").value(cur.getString(numberIndex));
-                out.name("type").value(getCallTypeString(cur.getInt(callTypeIndex)));
-                out.name("date").value(getDateString(cur.getLong(dateIndex), dateFormat));
-                out.name("duration").value(getTimeString(cur.getInt(durationIndex)));
-                out.name("sim_id").value(cur.getString(simTypeIndex));
-
+                writeCall(cur, columns, out, timestampFormatter, raw);
                 cur.moveToPrevious();
-                out.endObject();
             }
             out.endArray();
         }
     }
 
+    /**
+     * Write calls with an `_id` greater than {@code after} in ascending `_id` order, moving forward
+     * over the cursor.
+     */
+    private static void getCallLogsAfter(Context context, JsonWriter out, TimestampFormatter timestampFormatter, boolean raw,
+                                         String selection, List<String> selectionArgs,
+                                         long after, int limit) throws IOException {
+        ContentResolver contentResolver = context.getContentResolver();
+
+        List<String> args = new ArrayList<>(selectionArgs);
+        args.add(String.valueOf(after));
+
+        out.beginArray();
+        try (Cursor cur = contentResolver.query(getLimitUri(limit), CALL_PROJECTION,
+                appendIdSelection(selection), toArgsArray(args), CallLog.Calls._ID + " ASC")) {
+            CallColumns columns = new CallColumns(cur);
+            while (cur.moveToNext()) {
+                writeCall(cur, columns, out, timestampFormatter, raw);
+            }
+        }
+        out.endArray();
+    }
+
+    /**
+     * Write calls with an `_id` greater than {@code since} in ascending `_id` order, along with the
+     * new `since` value and a `change_token` to pass back in the next call. If {@code changeToken}
+     * matches the current token, the call log has not changed and is not queried at all. If
+     * {@code limit} calls were returned, `has_more` is `true` and `change_token` is `null`, so that
+     * the next call returns the remaining calls instead of being skipped as unchanged.
+     */
+    private static void getCallLogsSince(Context context, JsonWriter out, TimestampFormatter timestampFormatter, boolean raw,
+                                         String selection, List<String> selectionArgs,
+                                         long since, String changeToken, int limit) throws IOException {
+        // Get token before querying so that changes made during the query invalidate it.
+        String currentChangeToken = ContentChangeTracker.getChangeToken(context, CallLog.Calls.CONTENT_URI);
+
+        out.beginObject();
+
+        if (currentChangeToken.equals(changeToken)) {
+            out.name("change_token").value(currentChangeToken);
+            out.name("changed").value(false);
+            out.name("since").value(since);
+            out.name("has_more").value(false);
+            out.name("calls").beginArray().endArray();
+            out.endObject();
+            return;
+        }
+
+        ContentResolver contentResolver = context.getContentResolver();
+
+        List<String> args = new ArrayList<>(selectionArgs);
+        args.add(String.valueOf(since));
+
+        long maxId = since;
+        int count = 0;
+        out.name("calls").beginArray();
+        try (Cursor cur = contentResolver.query(getLimitUri(limit), CALL_PROJECTION,
+                appendIdSelection(selection), toArgsArray(args), CallLog.Calls._ID + " ASC")) {
+            CallColumns columns = new CallColumns(cur);
+            while (cur.moveToNext()) {
+                maxId = Math.max(maxId, cur.getLong(columns.id));
+                writeCall(cur, columns, out, timestampFormatter, raw);
+                count++;
+            }
+        }
+        out.endArray();
+        // The token is only valid once all calls up to it have been returned.
+        boolean hasMore = limit > 0 && count >= limit;
+        out.name("change_token").value(hasMore ? null : currentChangeToken);
+        out.name("changed").value(true);
+        out.name("since").value(maxId);
+        out.name("has_more").value(hasMore);
+        out.endObject();
+    }
+
+    private static Uri getLimitUri(int limit) {
+        return CallLog.Calls.CONTENT_URI.buildUpon().
+                appendQueryParameter(CallLog.Calls.LIMIT_PARAM_KEY, String.valueOf(limit))
+                .build();
+    }
+
+    private static String appendIdSelection(String selection) {
+        return (selection == null ? "" : "(" + selection + ") AND ") + CallLog.Calls._ID + " > ?";
+    }
+
+    @Nullable
+    private static String[] toArgsArray(List<String> args) {
+        return args.isEmpty() ? null : args.toArray(new String[0]);
+    }
+
+    /**
+     * Column indexes of a call cursor queried with {@link #CALL_PROJECTION}, resolved once per cursor.
+     */
+    private static class CallColumns {
+        final int id;
+        final int name;
+        final int number;
+        final int date;
+        final int duration;
+        final int callType;
+        final int simType;
+
+        CallColumns(Cursor cur) {
+            id = cur.getColumnIndex(CallLog.Calls._ID);
+            name = cur.getColumnIndex(CallLog.Calls.CACHED_NAME);
+            number = cur.getColumnIndex(CallLog.Calls.NUMBER);
+            date = cur.getColumnIndex(CallLog.Calls.DATE);
+            duration = cur.getColumnIndex(CallLog.Calls.DURATION);
+            callType = cur.getColumnIndex(CallLog.Calls.TYPE);
+            simType = cur.getColumnIndex(CallLog.Calls.PHONE_ACCOUNT_ID);
+        }
+    }
+
+    private static void writeCall(Cursor cur, CallColumns columns, JsonWriter out,
+                                  TimestampFormatter timestampFormatter, boolean raw) throws IOException {
+        out.beginObject();
+        out.name("_id").value(cur.getLong(columns.id));
+        out.name("name").value(getCallerNameString(cur.getString(columns.name)));
+        out.name("phone_number").value(cur.getString(columns.number));
+        out.name("type").value(getCallTypeString(cur.getInt(columns.callType)));
+        out.name("date");
+        timestampFormatter.write(out, cur.getLong(columns.date));
+        if (raw) {
+            out.name("duration").value(cur.getInt(columns.duration));
+        } else {
+            out.name("duration").value(getTimeString(cur.getInt(columns.duration)));
+        }
+        out.name("sim_id").value(cur.getString(columns.simType));
+        out.endObject();
+    }
+
     private static String getCallTypeString(int type) {
         switch (type) {
             case CallLog.Calls.BLOCKED_TYPE:    return "BLOCKED";
@@ -85,12 +293,20 @@ public class CallLogAPI {
         }
     }
 
-    private static String getCallerNameString(String name) {
-        return name == null ? "UNKNOWN_CALLER" : name;
+    private static int getCallType(String type) {
+        switch (type.toUpperCase(Locale.ENGLISH)) {
+            case "BLOCKED":     return CallLog.Calls.BLOCKED_TYPE;
+            case "INCOMING":    return CallLog.Calls.INCOMING_TYPE;
+            case "MISSED":      return CallLog.Calls.MISSED_TYPE;
+            case "OUTGOING":    return CallLog.Calls.OUTGOING_TYPE;
+            case "REJECTED":    return CallLog.Calls.REJECTED_TYPE;
+            case "VOICEMAIL":   return CallLog.Calls.VOICEMAIL_TYPE;
+            default: throw new IllegalArgumentException("Invalid call type: '" + type + "'");
+        }
     }
 
-    private static String getDateString(Long date, DateFormat dateFormat) {
-        return dateFormat.format(new Date(date));
+    private static String getCallerNameString(String name) {
+        return name == null ? "UNKNOWN_CALLER" : name;
     }
 
     private static String getTimeString(int totalSeconds) {
@@ -98,13 +314,19 @@ public class CallLogAPI {
         int mins = (totalSeconds % 3600) / 60;
         int secs = (totalSeconds % 60);
 
-        String result = "";
+        StringBuilder result = new StringBuilder(8);
 
         // only show hours if we have them
         if (hours > 0) {
-            result += String.format(Locale.getDefault(), "%02d:", hours);
+            appendTwoDigits(result, hours).append(':');
         }
-        result += String.format(Locale.getDefault(), "%02d:%02d", mins, secs);
-        return result;
+        appendTwoDigits(result, mins).append(':');
+        appendTwoDigits(result, secs);
+        return result.toString();
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder sb, int value) {
+        if (value < 10) sb.append('0');
+        return sb.append(value);
     }
 }
@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.util.JsonWriter;
@@ -12,6 +11,7 @@ import android.util.Size;
 import android.util.SizeF;
 
 import com.termux.api.TermuxApiReceiver;
+import com.termux.api.util.CameraCharacteristicsCache;
 import com.termux.api.util.ResultReturner;
 import com.termux.api.util.ResultReturner.ResultJsonWriter;
 import com.termux.shared.logger.Logger;
@@ -26,14 +26,12 @@ public class CameraInfoAPI {
         ResultReturner.returnData(apiReceiver, intent, new ResultJsonWriter() {
             @Override
             public void writeJson(JsonWriter out) throws Exception {
-                final CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-
                 out.beginArray();
-                for (String cameraId : manager.getCameraIdList()) {
+                for (String cameraId : CameraCharacteristicsCache.getCameraIds(context)) {
                     out.beginObject();
                     out.name("id").value(cameraId);
 
-                    CameraCharacteristics camera = manager.getCameraCharacteristics(cameraId);
+                    CameraCharacteristics camera = CameraCharacteristicsCache.getCameraCharacteristics(context, cameraId);
 
                     out.name("facing");
                     int lensFacing = camera.get(CameraCharacteristics.LENS_FACING);
@@ -1,26 +1,44 @@
 package com.termux.api.apis;
 
+import android.annotation.SuppressLint;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.DngCreator;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.ExifInterface;
 import android.media.Image;
 import android.media.ImageReader;
-import android.os.Looper;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.JsonWriter;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.view.WindowManager;
 
 import com.termux.api.TermuxApiReceiver;
+import com.termux.api.util.CameraCharacteristicsCache;
 import com.termux.api.util.ResultReturner;
 import com.termux.shared.errors.Error;
 import com.termux.shared.file.FileUtils;
@@ -29,15 +47,54 @@ import com.termux.shared.termux.file.TermuxFileUtils;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * API that takes a photo with the camera.
+ *
+ * Captures are run by the {@link CameraService}, which can keep the camera open for the
+ * `idle-timeout` extra milliseconds after a capture, so that repeated captures, like for timelapses,
+ * do not pay for opening the camera and converging auto exposure and focus every time.
+ *
+ * Multiple frames can be taken in one call, either as a burst of `count` frames, or one frame every
+ * `interval` milliseconds for `duration` milliseconds or until `count` frames are taken. The frames
+ * are saved with a sequence number before the extension of `file`, like `photo-0001.jpg`, and a
+ * JSON manifest with the timestamps and exposure metadata of all frames is saved as `photo.json`.
+ *
+ * By default the largest JPEG size is captured at the default quality. Smaller frames, which are
+ * faster to capture, encode and save, can be requested with the `size` extra as `WIDTHxHEIGHT`,
+ * which selects the smallest supported size that covers it, and the `aspect` extra as
+ * `WIDTH:HEIGHT`. The `quality` extra sets the JPEG quality from `1` to `100`. The `format` extra
+ * can be `jpeg`, `yuv` to capture uncompressed frames that are downscaled to exactly `size` on the
+ * device and then compressed, for sizes the camera does not support directly, or `raw` to save the
+ * sensor data as a DNG file if the camera supports it.
+ *
+ * The `stream` extra streams frames instead of saving them, either as a raw `h264` elementary
+ * stream encoded with {@link MediaCodec}, or as `mjpeg`, concatenated JPEG frames from the camera
+ * encoder. The read end of a pipe is passed to the client with {@link ResultReturner.WithAncillaryFd}
+ * once the camera is streaming, so it can be piped into `ffmpeg` at the sensor frame rate. The
+ * stream ends when the client closes the pipe or `duration` milliseconds (default `60000`) have
+ * passed. Since other captures wait for the stream, it is also ended if the client does not read
+ * a frame for a few seconds.
+ */
 public class CameraPhotoAPI {
 
     private static final String LOG_TAG = "CameraPhotoAPI";
@@ -45,179 +102,1431 @@ public class CameraPhotoAPI {
     public static void onReceive(TermuxApiReceiver apiReceiver, final Context context, Intent intent) {
         Logger.logDebug(LOG_TAG, "onReceive");
 
-        final String filePath = intent.getStringExtra("file");
-        final String cameraId = Objects.toString(intent.getStringExtra("camera"), "0");
+        Intent serviceIntent = new Intent(context, CameraService.class);
+        serviceIntent.putExtras(intent.getExtras());
+        context.startService(serviceIntent);
+    }
 
-        ResultReturner.returnData(apiReceiver, intent, stdout -> {
-            if (filePath == null || filePath.isEmpty()) {
-                stdout.println("ERROR: " + "File path not passed");
+    /**
+     * Service that runs the captures requested by the API one at a time on its {@link HandlerThread}.
+     *
+     * The {@link CameraDevice} and {@link CameraCaptureSession} of the last used camera are kept
+     * open for the `idle-timeout` of the last capture, defaulting to `0`, which closes them right
+     * after the capture like the API always has. A capture for a different camera closes the current
+     * one first.
+     *
+     * Before each capture, a repeating preview request is run until the {@link CaptureResult}
+     * reports that auto exposure and auto focus have converged, or `converge-timeout` milliseconds
+     * have passed, instead of sleeping for a fixed time. The preview keeps running during interval
+     * captures so that exposure follows the scene, and is stopped between jobs. Since the camera
+     * keeps its exposure and focus state, a warm camera normally converges within a few frames.
+     *
+     * Images are saved on a separate I/O {@link HandlerThread}, so that slow storage never delays
+     * the capture of the next frame. The {@link ImageReader} only holds a few images, so burst frames
+     * are issued as earlier ones are saved, interval frames are skipped while it is full, and
+     * streamed MJPEG frames are dropped while the previous frame is still being written.
+     */
+    public static class CameraService extends Service {
+
+        private static final String LOG_TAG = "CameraService";
+
+        static final int DEFAULT_CONVERGE_TIMEOUT = 1500;
+        /** The time the result writer waits for a capture before giving up. */
+        static final int CAPTURE_TIMEOUT = 30 * 1000;
+        /** The time a stream write may block on a client that does not read before the stream is ended. */
+        static final int STREAM_WRITE_TIMEOUT = 5 * 1000;
+        /**
+         * The number of images that can be held for saving. Burst frames are issued in chunks and
+         * interval frames are skipped so that no more frames than this are in flight at once.
+         */
+        static final int IMAGE_READER_MAX_IMAGES = 5;
+        static final int DEFAULT_YUV_QUALITY = 95;
+
+        private HandlerThread handlerThread;
+        private Handler handler;
+        private HandlerThread ioThread;
+        private Handler ioHandler;
+        private CameraManager manager;
+
+        private final Queue<CaptureJob> jobs = new ArrayDeque<>();
+        private CaptureJob currentJob;
+        private CameraSession session;
+        private final Runnable idleTimeoutCallback = this::closeIfIdle;
+        private final Runnable convergeTimeoutCallback = () -> {
+            Logger.logInfo(LOG_TAG, "Auto exposure and focus did not converge in time, capturing anyway");
+            capture();
+        };
+
+        /**
+         * The highest start id of the commands handled on the service thread. Commands are posted
+         * by their result writer threads, so stopping with it fails if a newer command was started
+         * but not posted yet, which will then stop the service once it is done.
+         */
+        private int lastHandledStartId;
+
+        @Override
+        public void onCreate() {
+            Logger.logDebug(LOG_TAG, "onCreate");
+
+            super.onCreate();
+            manager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
+            handlerThread = new HandlerThread(LOG_TAG);
+            handlerThread.start();
+            handler = new Handler(handlerThread.getLooper());
+            ioThread = new HandlerThread(LOG_TAG + "IO");
+            ioThread.start();
+            ioHandler = new Handler(ioThread.getLooper());
+        }
+
+        @Override
+        public int onStartCommand(final Intent intent, int flags, int startId) {
+            Logger.logDebug(LOG_TAG, "onStartCommand");
+
+            if (intent == null) {
+                handler.post(() -> closeIfIdle(startId));
+                return Service.START_NOT_STICKY;
+            }
+
+            final CaptureJob job = new CaptureJob(intent);
+            if (job.stream != null) {
+                returnStream(intent, job, startId);
+                return Service.START_NOT_STICKY;
+            }
+
+            ResultReturner.returnData(this, intent, stdout -> {
+                String error = job.validate();
+                if (error != null) {
+                    stdout.println("ERROR: " + error);
+                    handler.post(() -> closeIfIdle(startId));
+                    return;
+                }
+
+                handler.post(() -> enqueue(job, startId));
+                if (!job.done.await(job.getTimeout(), TimeUnit.MILLISECONDS)) {
+                    stdout.println("ERROR: Timed out waiting for capture");
+                    handler.post(() -> cancelJob(job, "ERROR: Timed out waiting for capture"));
+                } else if (job.error != null) {
+                    stdout.println(job.error);
+                }
+            });
+            return Service.START_NOT_STICKY;
+        }
+
+        /**
+         * Queue the stream {@code job}, and once it has started, send the read end of its pipe to
+         * the client.
+         */
+        private void returnStream(Intent intent, final CaptureJob job, final int startId) {
+            ResultReturner.returnData(this, intent, new ResultReturner.WithAncillaryFd() {
+                @Override
+                public void writeResult(PrintWriter out) throws Exception {
+                    String error = job.validate();
+                    if (error != null) {
+                        out.println("ERROR: " + error);
+                        handler.post(() -> closeIfIdle(startId));
+                        return;
+                    }
+
+                    ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+                    job.streamOutput = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                    handler.post(() -> enqueue(job, startId));
+
+                    // Wait for the stream to start, or fail before it does.
+                    long deadline = SystemClock.elapsedRealtime() + job.convergeTimeout + CAPTURE_TIMEOUT;
+                    while (!job.streamStarted.await(100, TimeUnit.MILLISECONDS)) {
+                        if (job.done.getCount() == 0 || SystemClock.elapsedRealtime() > deadline) break;
+                    }
+                    if (job.streamStarted.getCount() == 0) {
+                        sendFd(out, pipe[0].detachFd());
+                    } else {
+                        pipe[0].close();
+                        out.println(job.error != null ? job.error : "ERROR: Failed to start stream");
+                        handler.post(() -> cancelJob(job, "ERROR: Timed out starting stream"));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDestroy() {
+            Logger.logDebug(LOG_TAG, "onDestroy");
+
+            super.onDestroy();
+            handler.post(() -> {
+                closeSession();
+                if (currentJob != null) currentJob.finish("ERROR: Camera service stopped");
+                for (CaptureJob job : jobs) {
+                    job.finish("ERROR: Camera service stopped");
+                }
+                jobs.clear();
+            });
+            handlerThread.quitSafely();
+            // Let pending images be saved.
+            ioThread.quitSafely();
+        }
+
+        @Override
+        public IBinder onBind(Intent intent) {
+            return null;
+        }
+
+        private void enqueue(CaptureJob job, int startId) {
+            lastHandledStartId = Math.max(lastHandledStartId, startId);
+            handler.removeCallbacks(idleTimeoutCallback);
+            jobs.add(job);
+            processNextJob();
+        }
+
+        private void processNextJob() {
+            if (currentJob != null) return;
+
+            currentJob = jobs.poll();
+            if (currentJob == null) {
+                onIdle();
                 return;
             }
 
-            // Get canonical path of photoFilePath
-            String photoFilePath = TermuxFileUtils.getCanonicalPath(filePath, null, true);
-            String photoDirPath = FileUtils.getFileDirname(photoFilePath);
-            Logger.logVerbose(LOG_TAG, "photoFilePath=\"" + photoFilePath + "\", photoDirPath=\"" + photoDirPath + "\"");
+            if (session != null && !session.matches(currentJob)) {
+                closeSession();
+            }
 
-            // If workingDirectory is not a directory, or is not readable or writable, then just return
-            // Creation of missing directory and setting of read, write and execute permissions are only done if workingDirectory is
-            // under allowed termux working directory paths.
-            // We try to set execute permissions, but ignore if they are missing, since only read and write permissions are required
-            // for working directories.
-            Error error = TermuxFileUtils.validateDirectoryFileExistenceAndPermissions("photo directory", photoDirPath,
-                    true, true, true,
-                    false, true);
-            if (error != null) {
-                stdout.println("ERROR: " + error.getErrorLogString());
+            if (session == null) {
+                openSession(currentJob);
+            } else if (session.captureSession != null) {
+                startPreview();
+            }
+            // Otherwise the session is still being opened and will start the preview when configured.
+        }
+
+        private void onIdle() {
+            if (session == null) {
+                closeIfIdle();
+            } else if (session.idleTimeout > 0) {
+                Logger.logDebug(LOG_TAG, "Keeping camera " + session.cameraId + " open for " + session.idleTimeout + "ms");
+                handler.postDelayed(idleTimeoutCallback, session.idleTimeout);
+            } else {
+                closeIfIdle();
+            }
+        }
+
+        /** Close the camera and stop the service if there are no jobs left after command {@code startId}. */
+        private void closeIfIdle(int startId) {
+            lastHandledStartId = Math.max(lastHandledStartId, startId);
+            closeIfIdle();
+        }
+
+        private void closeIfIdle() {
+            if (currentJob != null || !jobs.isEmpty()) return;
+
+            closeSession();
+            if (stopSelfResult(lastHandledStartId)) {
+                Logger.logDebug(LOG_TAG, "No captures left, stopping");
+            }
+        }
+
+        @SuppressLint("MissingPermission")
+        private void openSession(final CaptureJob job) {
+            final String cameraId = job.cameraId;
+            final CameraSession newSession = new CameraSession(cameraId, job.getSessionFormat());
+            session = newSession;
+            try {
+                newSession.characteristics = CameraCharacteristicsCache.getCameraCharacteristics(this, cameraId);
+                newSession.captureSize = selectCaptureSize(newSession.characteristics, job);
+                Logger.logDebug(LOG_TAG, "Capturing " + job.format + " at " + newSession.captureSize);
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Error getting camera", e);
+                failSession(newSession, "ERROR: Error getting camera: " + e.getMessage());
                 return;
             }
 
-            takePicture(stdout, context, new File(photoFilePath), cameraId);
-        });
-    }
+            try {
+                manager.openCamera(cameraId, new CameraDevice.StateCallback() {
+                    @Override
+                    public void onOpened(CameraDevice camera) {
+                        newSession.device = camera;
+                        if (session != newSession) {
+                            newSession.close();
+                            return;
+                        }
+                        try {
+                            configureSession(newSession);
+                        } catch (Exception e) {
+                            Logger.logStackTraceWithMessage(LOG_TAG, "Exception in onOpened()", e);
+                            failSession(newSession, "ERROR: Failed to configure camera: " + e.getMessage());
+                        }
+                    }
 
-    private static void takePicture(final PrintWriter stdout, final Context context, final File outputFile, String cameraId) {
-        try {
-            final CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+                    @Override
+                    public void onDisconnected(CameraDevice camera) {
+                        Logger.logInfo(LOG_TAG, "onDisconnected() from camera");
+                        newSession.device = camera;
+                        failSession(newSession, "ERROR: Camera disconnected");
+                    }
+
+                    @Override
+                    public void onError(CameraDevice camera, int error) {
+                        Logger.logError(LOG_TAG, "Failed opening camera: " + error);
+                        newSession.device = camera;
+                        failSession(newSession, "ERROR: Failed opening camera: " + error);
+                    }
+                }, handler);
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Error getting camera", e);
+                failSession(newSession, "ERROR: Error getting camera: " + e.getMessage());
+            }
+        }
+
+        // See answer on http://stackoverflow.com/questions/31925769/pictures-with-camera2-api-are-really-dark
+        // See https://developer.android.com/reference/android/hardware/camera2/CameraDevice.html#createCaptureSession(java.util.List<android.view.Surface>, android.hardware.camera2.CameraCaptureSession.StateCallback, android.os.Handler)
+        // for information about guaranteed support for output sizes and formats.
+        private void configureSession(final CameraSession cameraSession) throws CameraAccessException, IOException {
+            final CameraCharacteristics characteristics = cameraSession.characteristics;
+
+            cameraSession.autoExposureMode = CameraMetadata.CONTROL_AE_MODE_OFF;
+            for (int supportedMode : characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES)) {
+                if (supportedMode == CameraMetadata.CONTROL_AE_MODE_ON) {
+                    cameraSession.autoExposureMode = supportedMode;
+                }
+            }
+            Float minimumFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+            cameraSession.hasAutoFocus = minimumFocusDistance != null && minimumFocusDistance > 0;
+
+            Size captureSize = cameraSession.captureSize;
+            if (CaptureJob.STREAM_H264.equals(cameraSession.format)) {
+                // The encoder input surface is the only output, frames are encoded as they arrive.
+                createEncoder(cameraSession, currentJob);
+                cameraSession.outputSurfaces.add(cameraSession.encoderSurface);
+            } else {
+                cameraSession.imageReader = ImageReader.newInstance(captureSize.getWidth(), captureSize.getHeight(),
+                        getImageFormat(cameraSession.format), IMAGE_READER_MAX_IMAGES);
+                cameraSession.imageReader.setOnImageAvailableListener(this::onImageAvailable, handler);
+                cameraSession.outputSurfaces.add(cameraSession.imageReader.getSurface());
+            }
+
+            if (!CaptureJob.isStream(cameraSession.format)) {
+                // create a dummy PreviewSurface
+                cameraSession.previewTexture = new SurfaceTexture(1);
+                cameraSession.previewSurface = new Surface(cameraSession.previewTexture);
+                cameraSession.outputSurfaces.add(cameraSession.previewSurface);
+            }
+
+            cameraSession.device.createCaptureSession(cameraSession.outputSurfaces, new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession captureSession) {
+                    cameraSession.captureSession = captureSession;
+                    if (session != cameraSession) return;
+                    if (currentJob != null && currentJob.stream != null) {
+                        startStream();
+                    } else if (currentJob != null) {
+                        startPreview();
+                    } else {
+                        onIdle();
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession captureSession) {
+                    Logger.logError(LOG_TAG, "onConfigureFailed() error in preview");
+                    failSession(cameraSession, "ERROR: Failed to configure camera session");
+                }
+            }, handler);
+        }
+
+        /**
+         * Create and start the H.264 encoder for the stream {@code job}, which writes the encoded
+         * buffers to the stream pipe on the I/O thread.
+         */
+        private void createEncoder(CameraSession cameraSession, final CaptureJob job) throws IOException {
+            Size size = cameraSession.captureSize;
+            MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, size.getWidth(), size.getHeight());
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, job.bitrate > 0 ? job.bitrate :
+                    (int) Math.min(Integer.MAX_VALUE, (long) size.getWidth() * size.getHeight() * job.fps / 8));
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, job.fps);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
 
-            Looper.prepare();
-            final Looper looper = Looper.myLooper();
+            final MediaCodec encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            cameraSession.encoder = encoder;
+            encoder.setCallback(new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    // Input comes from the surface.
+                }
 
-            //noinspection MissingPermission
-            manager.openCamera(cameraId, new CameraDevice.StateCallback() {
                 @Override
-                public void onOpened(final CameraDevice camera) {
+                public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
                     try {
-                        proceedWithOpenedCamera(context, manager, camera, outputFile, looper, stdout);
-                    } catch (Exception e) {
-                        Logger.logStackTraceWithMessage(LOG_TAG, "Exception in onOpened()", e);
-                        closeCamera(camera, looper);
+                        ByteBuffer buffer = codec.getOutputBuffer(index);
+                        if (buffer != null && info.size > 0) {
+                            buffer.position(info.offset);
+                            buffer.limit(info.offset + info.size);
+                            writeStream(job, buffer);
+                        }
+                        codec.releaseOutputBuffer(index, false);
+                    } catch (IllegalStateException e) {
+                        // The encoder was stopped while the buffer was being written.
                     }
                 }
 
                 @Override
-                public void onDisconnected(CameraDevice camera) {
-                    Logger.logInfo(LOG_TAG, "onDisconnected() from camera");
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Encoder error", e);
+                    handler.post(() -> finishJob(job, "ERROR: Encoder error: " + e.getMessage()));
                 }
 
                 @Override
-                public void onError(CameraDevice camera, int error) {
-                    Logger.logError(LOG_TAG, "Failed opening camera: " + error);
-                    closeCamera(camera, looper);
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat outputFormat) {
+                    // The codec config is also delivered as an output buffer.
+                }
+            }, ioHandler);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            cameraSession.encoderSurface = encoder.createInputSurface();
+            encoder.start();
+        }
+
+        /** Start the repeating request of the current stream job. */
+        private void startStream() {
+            final CaptureJob job = currentJob;
+            job.captureStarted = true;
+            try {
+                CaptureRequest.Builder streamRequest = session.device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                for (Surface surface : session.outputSurfaces) {
+                    streamRequest.addTarget(surface);
+                }
+                streamRequest.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+                streamRequest.set(CaptureRequest.CONTROL_AE_MODE, session.autoExposureMode);
+                Range<Integer> fpsRange = selectFpsRange(session.characteristics, job.fps);
+                if (fpsRange != null) streamRequest.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+                if (CaptureJob.STREAM_MJPEG.equals(job.stream)) {
+                    streamRequest.set(CaptureRequest.JPEG_ORIENTATION, correctOrientation(this, session.characteristics));
+                    if (job.quality > 0) streamRequest.set(CaptureRequest.JPEG_QUALITY, (byte) job.quality);
                 }
-            }, null);
 
-            Looper.loop();
-        } catch (Exception e) {
-            Logger.logStackTraceWithMessage(LOG_TAG, "Error getting camera", e);
+                session.captureSession.setRepeatingRequest(streamRequest.build(), null, handler);
+                Logger.logInfo(LOG_TAG, "stream started at " + session.captureSize + (fpsRange != null ? " " + fpsRange + "fps" : ""));
+                job.streamStarted.countDown();
+                handler.postDelayed(() -> finishJob(job, null), job.duration);
+                handler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (currentJob != job) return;
+                        long writeStartTime = job.streamWriteStartTime;
+                        if (writeStartTime > 0 && SystemClock.elapsedRealtime() - writeStartTime > STREAM_WRITE_TIMEOUT) {
+                            Logger.logError(LOG_TAG, "Stream write stalled, ending stream");
+                            // Closing the output makes the blocked write fail, which frees the writing thread.
+                            job.closeStreamNow();
+                            finishJob(job, "ERROR: Stream stalled");
+                            return;
+                        }
+                        handler.postDelayed(this, STREAM_WRITE_TIMEOUT / 5);
+                    }
+                }, STREAM_WRITE_TIMEOUT / 5);
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Error starting stream", e);
+                failSession(session, "ERROR: Error starting stream: " + e.getMessage());
+            }
         }
-    }
 
-    // See answer on http://stackoverflow.com/questions/31925769/pictures-with-camera2-api-are-really-dark
-    // See https://developer.android.com/reference/android/hardware/camera2/CameraDevice.html#createCaptureSession(java.util.List<android.view.Surface>, android.hardware.camera2.CameraCaptureSession.StateCallback, android.os.Handler)
-    // for information about guaranteed support for output sizes and formats.
-    static void proceedWithOpenedCamera(final Context context, final CameraManager manager, final CameraDevice camera, final File outputFile, final Looper looper, final PrintWriter stdout) throws CameraAccessException, IllegalArgumentException {
-        final List<Surface> outputSurfaces = new ArrayList<>();
+        /** Select the fixed range for {@code fps} if available, otherwise the smallest one containing it. */
+        static Range<Integer> selectFpsRange(CameraCharacteristics characteristics, int fps) {
+            Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            if (ranges == null) return null;
 
-        final CameraCharacteristics characteristics = manager.getCameraCharacteristics(camera.getId());
+            Range<Integer> selected = null;
+            for (Range<Integer> range : ranges) {
+                if (!range.contains(fps)) continue;
+                if (selected == null || range.getUpper() - range.getLower() < selected.getUpper() - selected.getLower()) {
+                    selected = range;
+                }
+            }
+            return selected;
+        }
 
-        int autoExposureMode = CameraMetadata.CONTROL_AE_MODE_OFF;
-        for (int supportedMode : characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES)) {
-            if (supportedMode == CameraMetadata.CONTROL_AE_MODE_ON) {
-                autoExposureMode = supportedMode;
+        /**
+         * Write {@code buffer} to the pipe of the stream {@code job} on the I/O thread, and finish the
+         * job if the client has closed it.
+         */
+        private void writeStream(final CaptureJob job, ByteBuffer buffer) {
+            ParcelFileDescriptor.AutoCloseOutputStream output = job.streamOutput;
+            if (output == null) return;
+            job.streamWriteStartTime = SystemClock.elapsedRealtime();
+            try {
+                FileChannel channel = output.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                Logger.logDebug(LOG_TAG, "Stream closed: " + e.getMessage());
+                handler.post(() -> finishJob(job, null));
+            } finally {
+                job.streamWriteStartTime = 0;
             }
         }
-        final int autoExposureModeFinal = autoExposureMode;
 
-        // Use largest available size:
-        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-        Comparator<Size> bySize = (lhs, rhs) -> {
-            // Cast to ensure multiplications won't overflow:
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() - (long) rhs.getWidth() * rhs.getHeight());
-        };
-        List<Size> sizes = Arrays.asList(map.getOutputSizes(ImageFormat.JPEG));
-        Size largest = Collections.max(sizes, bySize);
+        static int getImageFormat(String format) {
+            switch (format) {
+                case CaptureJob.FORMAT_YUV:
+                    return ImageFormat.YUV_420_888;
+                case CaptureJob.FORMAT_RAW:
+                    return ImageFormat.RAW_SENSOR;
+                default:
+                    return ImageFormat.JPEG;
+            }
+        }
 
-        final ImageReader mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(), ImageFormat.JPEG, 2);
-        mImageReader.setOnImageAvailableListener(reader -> new Thread() {
-            @Override
-            public void run() {
-                try (final Image mImage = reader.acquireNextImage()) {
-                    ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-                    byte[] bytes = new byte[buffer.remaining()];
-                    buffer.get(bytes);
-                    try (FileOutputStream output = new FileOutputStream(outputFile)) {
-                        output.write(bytes);
-                    } catch (Exception e) {
-                        stdout.println("Error writing image: " + e.getMessage());
-                        Logger.logStackTraceWithMessage(LOG_TAG, "Error writing image", e);
+        /**
+         * Select the capture size for the format of {@code job}. Sizes are compared in the landscape
+         * orientation of the sensor, regardless of the orientation of the requested size and aspect.
+         */
+        static Size selectCaptureSize(CameraCharacteristics characteristics, CaptureJob job) {
+            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            String format = job.getSessionFormat();
+            Size[] outputSizes = CaptureJob.STREAM_H264.equals(format) ? map.getOutputSizes(MediaCodec.class) :
+                    map.getOutputSizes(getImageFormat(format));
+            if (outputSizes == null || outputSizes.length == 0) {
+                throw new IllegalArgumentException("Camera does not support '" + format + "' capture");
+            }
+
+            Comparator<Size> bySize = (lhs, rhs) -> {
+                // Cast to ensure multiplications won't overflow:
+                return Long.signum((long) lhs.getWidth() * lhs.getHeight() - (long) rhs.getWidth() * rhs.getHeight());
+            };
+            List<Size> sizes = new ArrayList<>(Arrays.asList(outputSizes));
+
+            if (job.aspect > 0) {
+                float aspect = job.aspect < 1 ? 1 / job.aspect : job.aspect;
+                List<Size> aspectSizes = new ArrayList<>();
+                for (Size size : sizes) {
+                    float sizeAspect = (float) Math.max(size.getWidth(), size.getHeight()) / Math.min(size.getWidth(), size.getHeight());
+                    if (Math.abs(sizeAspect - aspect) <= aspect * 0.01f) aspectSizes.add(size);
+                }
+                // Fall back to all sizes if none match.
+                if (!aspectSizes.isEmpty()) sizes = aspectSizes;
+            }
+
+            int width = job.width;
+            int height = job.height;
+            if (width <= 0 && job.stream != null) {
+                width = CaptureJob.DEFAULT_STREAM_WIDTH;
+                height = CaptureJob.DEFAULT_STREAM_HEIGHT;
+            }
+            if (width > 0) {
+                int targetLong = Math.max(width, height);
+                int targetShort = Math.min(width, height);
+                List<Size> coveringSizes = new ArrayList<>();
+                for (Size size : sizes) {
+                    if (Math.max(size.getWidth(), size.getHeight()) >= targetLong &&
+                            Math.min(size.getWidth(), size.getHeight()) >= targetShort) {
+                        coveringSizes.add(size);
                     }
-                } finally {
-                    mImageReader.close();
-                    releaseSurfaces(outputSurfaces);
-                    closeCamera(camera, looper);
                 }
+                if (!coveringSizes.isEmpty()) return Collections.min(coveringSizes, bySize);
             }
-        }.start(), null);
-        final Surface imageReaderSurface = mImageReader.getSurface();
-        outputSurfaces.add(imageReaderSurface);
 
-        // create a dummy PreviewSurface
-        SurfaceTexture previewTexture = new SurfaceTexture(1);
-        Surface dummySurface = new Surface(previewTexture);
-        outputSurfaces.add(dummySurface);
+            // Use largest available size:
+            return Collections.max(sizes, bySize);
+        }
 
-        camera.createCaptureSession(outputSurfaces, new CameraCaptureSession.StateCallback() {
-            @Override
-            public void onConfigured(final CameraCaptureSession session) {
+        /**
+         * Start the repeating preview for the current job, which captures as soon as auto exposure
+         * and auto focus have converged.
+         */
+        private void startPreview() {
+            final CaptureJob job = currentJob;
+            session.idleTimeout = job.idleTimeout;
+            try {
+                CaptureRequest.Builder previewReq = session.device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                previewReq.addTarget(session.previewSurface);
+                previewReq.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                previewReq.set(CaptureRequest.CONTROL_AE_MODE, session.autoExposureMode);
+
+                session.captureSession.setRepeatingRequest(previewReq.build(), new CameraCaptureSession.CaptureCallback() {
+                    @Override
+                    public void onCaptureCompleted(CameraCaptureSession completedSession, CaptureRequest request, TotalCaptureResult result) {
+                        if (currentJob == job && !job.captureStarted && isConverged(result)) {
+                            Logger.logDebug(LOG_TAG, "Auto exposure and focus converged");
+                            capture();
+                        }
+                    }
+                }, handler);
+                Logger.logInfo(LOG_TAG, "preview started");
+                handler.postDelayed(convergeTimeoutCallback, job.convergeTimeout);
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Error starting preview", e);
+                failSession(session, "ERROR: Error starting preview: " + e.getMessage());
+            }
+        }
+
+        /** Whether auto exposure and auto focus have settled in the preview {@code result}. */
+        private boolean isConverged(CaptureResult result) {
+            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            boolean aeConverged = aeState == null || session.autoExposureMode == CameraMetadata.CONTROL_AE_MODE_OFF ||
+                    aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED ||
+                    aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED ||
+                    aeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+
+            Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+            boolean afConverged = afState == null || !session.hasAutoFocus ||
+                    afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED ||
+                    afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_UNFOCUSED ||
+                    afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+                    afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
+
+            return aeConverged && afConverged;
+        }
+
+        private void capture() {
+            handler.removeCallbacks(convergeTimeoutCallback);
+            final CaptureJob job = currentJob;
+            if (job == null || job.captureStarted || session == null) return;
+            job.captureStarted = true;
+
+            try {
+                job.orientation = correctOrientation(this, session.characteristics);
+                job.characteristics = session.characteristics;
+                job.setOutputSize(session.captureSize);
+
+                final CaptureRequest.Builder stillRequest = session.device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                // Render to our image reader:
+                stillRequest.addTarget(session.imageReader.getSurface());
+                // Configure auto-focus (AF) and auto-exposure (AE) modes:
+                stillRequest.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                stillRequest.set(CaptureRequest.CONTROL_AE_MODE, session.autoExposureMode);
+                if (CaptureJob.FORMAT_JPEG.equals(job.format)) {
+                    stillRequest.set(CaptureRequest.JPEG_ORIENTATION, job.orientation);
+                    if (job.quality > 0) stillRequest.set(CaptureRequest.JPEG_QUALITY, (byte) job.quality);
+                }
+                job.stillRequest = stillRequest.build();
+                job.captureCallback = new FrameCaptureCallback(job);
+
+                if (job.interval > 0) {
+                    job.startTime = SystemClock.uptimeMillis();
+                    captureInterval(job);
+                } else {
+                    // Stop the preview so that the burst frames are captured back to back.
+                    session.captureSession.stopRepeating();
+                    Logger.logInfo(LOG_TAG, "preview stopped");
+                    captureBurst(job);
+                }
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Error capturing image", e);
+                failSession(session, "ERROR: Error capturing image: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Issue the next frames of a burst capture, as many as fit in the {@link ImageReader} next
+         * to the frames that are still in flight, since acquiring more images than it holds fails.
+         * The rest are issued by {@link #checkJobDone(CaptureJob)} as frames are saved.
+         */
+        private void captureBurst(CaptureJob job) throws CameraAccessException {
+            int frames = Math.min(job.count - job.issued, IMAGE_READER_MAX_IMAGES - job.getFramesInFlight());
+            if (frames <= 0) return;
+
+            if (frames > 1) {
+                session.captureSession.captureBurst(Collections.nCopies(frames, job.stillRequest),
+                        job.captureCallback, handler);
+            } else {
+                session.captureSession.capture(job.stillRequest, job.captureCallback, handler);
+            }
+            job.issued += frames;
+            if (job.issued >= job.count) job.scheduleDone = true;
+        }
+
+        /**
+         * Capture the next frame of an interval capture, and schedule the one after it at a fixed
+         * rate from the start of the capture, so that slow captures do not cause drift. The frame
+         * is skipped if the {@link ImageReader} is still full with frames that are being saved.
+         */
+        private void captureInterval(final CaptureJob job) {
+            if (currentJob != job || session == null) return;
+
+            if (job.getFramesInFlight() >= IMAGE_READER_MAX_IMAGES) {
+                Logger.logInfo(LOG_TAG, "Skipping interval frame while " + job.getFramesInFlight() + " frames are being saved");
+                job.skipped++;
+            } else {
                 try {
-                    // create preview Request
-                    CaptureRequest.Builder previewReq = camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-                    previewReq.addTarget(dummySurface);
-                    previewReq.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                    previewReq.set(CaptureRequest.CONTROL_AE_MODE, autoExposureModeFinal);
-
-                    // continous preview-capture for 1/2 second
-                    session.setRepeatingRequest(previewReq.build(), null, null);
-                    Logger.logInfo(LOG_TAG, "preview started");
-                    Thread.sleep(500);
-                    session.stopRepeating();
-                    Logger.logInfo(LOG_TAG, "preview stoppend");
-
-                    final CaptureRequest.Builder jpegRequest = camera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-                    // Render to our image reader:
-                    jpegRequest.addTarget(imageReaderSurface);
-                    // Configure auto-focus (AF) and auto-exposure (AE) modes:
-                    jpegRequest.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                    jpegRequest.set(CaptureRequest.CONTROL_AE_MODE, autoExposureModeFinal);
-                    jpegRequest.set(CaptureRequest.JPEG_ORIENTATION, correctOrientation(context, characteristics));
-
-                    saveImage(camera, session, jpegRequest.build());
+                    session.captureSession.capture(job.stillRequest, job.captureCallback, handler);
                 } catch (Exception e) {
-                    Logger.logStackTraceWithMessage(LOG_TAG, "onConfigured() error in preview", e);
-                    mImageReader.close();
-                    releaseSurfaces(outputSurfaces);
-                    closeCamera(camera, looper);
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Error capturing image", e);
+                    failSession(session, "ERROR: Error capturing image: " + e.getMessage());
+                    return;
                 }
+                job.issued++;
+            }
+
+            long nextTime = job.startTime + (long) (job.issued + job.skipped) * job.interval;
+            if ((job.count > 0 && job.issued >= job.count) ||
+                    (job.duration > 0 && nextTime - job.startTime >= job.duration)) {
+                job.scheduleDone = true;
+                checkJobDone(job);
+            } else {
+                handler.postAtTime(() -> captureInterval(job), nextTime);
+            }
+        }
+
+        /**
+         * Matches the capture results of a job to its frames, and counts the frames that will not
+         * produce an image.
+         */
+        private class FrameCaptureCallback extends CameraCaptureSession.CaptureCallback {
+            final CaptureJob job;
+
+            FrameCaptureCallback(CaptureJob job) {
+                this.job = job;
             }
 
             @Override
-            public void onConfigureFailed(CameraCaptureSession session) {
-                Logger.logError(LOG_TAG, "onConfigureFailed() error in preview");
-                mImageReader.close();
-                releaseSurfaces(outputSurfaces);
-                closeCamera(camera, looper);
+            public void onCaptureStarted(CameraCaptureSession startedSession, CaptureRequest request, long timestamp, long frameNumber) {
+                CaptureJob.Frame frame = job.getFrame(timestamp);
+                frame.time = System.currentTimeMillis();
+                frame.frameNumber = frameNumber;
             }
-        }, null);
-    }
 
-    static void saveImage(final CameraDevice camera, CameraCaptureSession session, CaptureRequest request) throws CameraAccessException {
-        session.capture(request, new CameraCaptureSession.CaptureCallback() {
             @Override
             public void onCaptureCompleted(CameraCaptureSession completedSession, CaptureRequest request, TotalCaptureResult result) {
                 Logger.logInfo(LOG_TAG, "onCaptureCompleted()");
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if (timestamp != null) {
+                    CaptureJob.Frame frame = job.getFrame(timestamp);
+                    frame.result = result;
+                    // Raw images can only be saved with their capture result.
+                    if (frame.image != null) {
+                        saveFrame(job, frame, frame.image);
+                        frame.image = null;
+                    }
+                }
+                job.completed++;
+                checkJobDone(job);
             }
-        }, null);
+
+            @Override
+            public void onCaptureFailed(CameraCaptureSession failedSession, CaptureRequest request, CaptureFailure failure) {
+                Logger.logError(LOG_TAG, "onCaptureFailed(): " + failure.getReason());
+                job.error = "ERROR: Capture failed: " + failure.getReason();
+                job.completed++;
+                if (!failure.wasImageCaptured()) {
+                    job.saved++;
+                } else if (CaptureJob.FORMAT_RAW.equals(job.format)) {
+                    // A raw image without a capture result is dropped, and is only counted once it
+                    // is closed, so that it stays in the frames in flight while it holds a reader slot.
+                    CaptureJob.Frame frame = job.findFrame(failure.getFrameNumber());
+                    if (frame == null) {
+                        job.saved++;
+                    } else {
+                        frame.failed = true;
+                        if (frame.image != null) {
+                            frame.image.close();
+                            frame.image = null;
+                            job.saved++;
+                        }
+                    }
+                }
+                checkJobDone(job);
+            }
+
+            @Override
+            public void onCaptureBufferLost(CameraCaptureSession lostSession, CaptureRequest request, Surface target, long frameNumber) {
+                Logger.logError(LOG_TAG, "onCaptureBufferLost()");
+                job.error = "ERROR: Capture buffer lost";
+                job.saved++;
+                checkJobDone(job);
+            }
+        }
+
+        private void onImageAvailable(ImageReader reader) {
+            final CaptureJob job = currentJob;
+            final Image image;
+            try {
+                // Only the latest stream frame matters, older ones are closed by the reader.
+                image = job != null && job.stream != null ? reader.acquireLatestImage() : reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                Logger.logError(LOG_TAG, "Dropping frame, all images are in use: " + e.getMessage());
+                if (job != null && job.stream == null && job.captureStarted) {
+                    job.error = "ERROR: Dropped frame, all images are in use";
+                    job.saved++;
+                    checkJobDone(job);
+                }
+                return;
+            }
+            if (image == null) return;
+            if (job == null || !job.captureStarted) {
+                image.close();
+                return;
+            }
+
+            if (job.stream != null) {
+                // Drop the frame instead of queueing it while the client reads the previous one.
+                if (job.streamWritePending) {
+                    image.close();
+                    return;
+                }
+                job.streamWritePending = true;
+                ioHandler.post(() -> {
+                    try (final Image mImage = image) {
+                        writeStream(job, mImage.getPlanes()[0].getBuffer());
+                    } finally {
+                        job.streamWritePending = false;
+                    }
+                });
+                return;
+            }
+
+            final CaptureJob.Frame frame = job.getFrame(image.getTimestamp());
+            if (frame.failed) {
+                image.close();
+                job.saved++;
+                checkJobDone(job);
+                return;
+            }
+            if (CaptureJob.FORMAT_RAW.equals(job.format) && frame.result == null) {
+                frame.image = image;
+                return;
+            }
+            saveFrame(job, frame, image);
+        }
+
+        /** Save {@code image} of {@code frame} in the format of {@code job} on the I/O thread. */
+        private void saveFrame(final CaptureJob job, final CaptureJob.Frame frame, final Image image) {
+            final File frameFile = job.getFrameFile(frame.index);
+            ioHandler.post(() -> {
+                String error = null;
+                try (final Image mImage = image) {
+                    switch (job.format) {
+                        case CaptureJob.FORMAT_YUV:
+                            writeYuvImage(mImage, frameFile, job.outputWidth, job.outputHeight, job.quality, job.orientation);
+                            break;
+                        case CaptureJob.FORMAT_RAW:
+                            writeRawImage(mImage, frameFile, job.characteristics, frame.result, job.orientation);
+                            break;
+                        default:
+                            writeImage(mImage, frameFile);
+                    }
+                } catch (Exception e) {
+                    error = "Error writing image: " + e.getMessage();
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Error writing image", e);
+                }
+                final String writeError = error;
+                handler.post(() -> {
+                    if (writeError != null) {
+                        job.error = writeError;
+                    } else {
+                        frame.file = frameFile;
+                    }
+                    job.saved++;
+                    checkJobDone(job);
+                });
+            });
+        }
+
+        /**
+         * Write the JPEG data of {@code image} to {@code file} directly from the plane buffer,
+         * without copying it into a heap array first.
+         */
+        static void writeImage(Image image, File file) throws IOException {
+            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+
+        /**
+         * Downscale the YUV {@code image} to {@code width} x {@code height} with nearest neighbour
+         * sampling, and write it to {@code file} as a JPEG.
+         */
+        static void writeYuvImage(Image image, File file, int width, int height, int quality, int orientation) throws IOException {
+            byte[] nv21 = toNv21(image, width, height);
+            YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+            try (FileOutputStream output = new FileOutputStream(file)) {
+                if (!yuvImage.compressToJpeg(new Rect(0, 0, width, height), quality > 0 ? quality : DEFAULT_YUV_QUALITY, output)) {
+                    throw new IOException("Failed to compress image");
+                }
+            }
+
+            // Unlike the camera JPEG encoder, YuvImage does not rotate, so only tag the orientation.
+            ExifInterface exif = new ExifInterface(file.getPath());
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(getExifOrientation(orientation)));
+            exif.saveAttributes();
+        }
+
+        /** Convert the YUV_420_888 {@code image} to NV21 at {@code width} x {@code height}. */
+        static byte[] toNv21(Image image, int width, int height) {
+            Image.Plane[] planes = image.getPlanes();
+            int imageWidth = image.getWidth();
+            int imageHeight = image.getHeight();
+            byte[] nv21 = new byte[width * height * 3 / 2];
+            int position = 0;
+
+            ByteBuffer yBuffer = planes[0].getBuffer();
+            int yRowStride = planes[0].getRowStride();
+            int yPixelStride = planes[0].getPixelStride();
+            for (int y = 0; y < height; y++) {
+                int rowOffset = (int) ((long) y * imageHeight / height) * yRowStride;
+                for (int x = 0; x < width; x++) {
+                    nv21[position++] = yBuffer.get(rowOffset + (int) ((long) x * imageWidth / width) * yPixelStride);
+                }
+            }
+
+            // The U and V planes have the same strides.
+            ByteBuffer uBuffer = planes[1].getBuffer();
+            ByteBuffer vBuffer = planes[2].getBuffer();
+            int uvRowStride = planes[1].getRowStride();
+            int uvPixelStride = planes[1].getPixelStride();
+            for (int y = 0; y < height / 2; y++) {
+                int rowOffset = (int) ((long) y * imageHeight / height) * uvRowStride;
+                for (int x = 0; x < width / 2; x++) {
+                    int offset = rowOffset + (int) ((long) x * imageWidth / width) * uvPixelStride;
+                    nv21[position++] = vBuffer.get(offset);
+                    nv21[position++] = uBuffer.get(offset);
+                }
+            }
+            return nv21;
+        }
+
+        /** Write the RAW_SENSOR {@code image} to {@code file} as a DNG. */
+        static void writeRawImage(Image image, File file, CameraCharacteristics characteristics,
+                                  CaptureResult result, int orientation) throws IOException {
+            try (DngCreator dngCreator = new DngCreator(characteristics, result);
+                 FileOutputStream output = new FileOutputStream(file)) {
+                dngCreator.setOrientation(getExifOrientation(orientation));
+                dngCreator.writeImage(output, image);
+            }
+        }
+
+        static int getExifOrientation(int orientation) {
+            switch (orientation) {
+                case 90:
+                    return ExifInterface.ORIENTATION_ROTATE_90;
+                case 180:
+                    return ExifInterface.ORIENTATION_ROTATE_180;
+                case 270:
+                    return ExifInterface.ORIENTATION_ROTATE_270;
+                default:
+                    return ExifInterface.ORIENTATION_NORMAL;
+            }
+        }
+
+        /**
+         * Finish {@code job} once all its frames have been captured and saved, after saving its
+         * manifest if it has multiple frames.
+         */
+        private void checkJobDone(final CaptureJob job) {
+            if (currentJob == job && !job.scheduleDone && job.interval == 0 && job.stillRequest != null) {
+                try {
+                    captureBurst(job);
+                } catch (Exception e) {
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Error capturing image", e);
+                    failSession(session, "ERROR: Error capturing image: " + e.getMessage());
+                    return;
+                }
+            }
+            if (currentJob != job || !job.scheduleDone || job.saved < job.issued || job.completed < job.issued) return;
+
+            if (!job.isMultiFrame()) {
+                finishJob(job, job.error);
+                return;
+            }
+
+            // Prevent finishing twice while the manifest is being saved.
+            job.scheduleDone = false;
+            final String cameraId = session.cameraId;
+            ioHandler.post(() -> {
+                String error = job.error;
+                try {
+                    job.writeManifest(cameraId);
+                } catch (Exception e) {
+                    error = "Error writing manifest: " + e.getMessage();
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Error writing manifest", e);
+                }
+                final String manifestError = error;
+                handler.post(() -> finishJob(job, manifestError));
+            });
+        }
+
+        /** Finish {@code job} with {@code error} after its result writer stopped waiting for it. */
+        private void cancelJob(CaptureJob job, String error) {
+            if (currentJob == job) {
+                finishJob(job, error);
+            } else if (jobs.remove(job)) {
+                job.finish(error);
+            }
+        }
+
+        private void finishJob(CaptureJob job, String error) {
+            if (currentJob != job) return;
+
+            job.finish(error);
+            currentJob = null;
+            job.closeImages();
+            if (job.completed < job.issued || job.getFramesInFlight() > 0) {
+                // Close the session so that images of pending captures are not delivered to the next job.
+                closeSession();
+            }
+            if (job.stream != null) {
+                // The session outputs only fit the stream, and the pipe is closed once the encoder stops.
+                closeSession();
+                job.closeStream(ioHandler);
+            }
+            if (job.interval > 0 && session != null && session.captureSession != null) {
+                try {
+                    session.captureSession.stopRepeating();
+                    Logger.logInfo(LOG_TAG, "preview stopped");
+                } catch (Exception e) {
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Error stopping preview", e);
+                }
+            }
+            processNextJob();
+        }
+
+        /** Close {@code cameraSession} and fail the current job after a camera error. */
+        private void failSession(CameraSession cameraSession, String error) {
+            handler.removeCallbacks(convergeTimeoutCallback);
+            cameraSession.close();
+            if (session != cameraSession) return;
+
+            session = null;
+            if (currentJob != null) {
+                currentJob.finish(error);
+                currentJob.closeImages();
+                currentJob.closeStream(ioHandler);
+                currentJob = null;
+            }
+            processNextJob();
+        }
+
+        private void closeSession() {
+            handler.removeCallbacks(idleTimeoutCallback);
+            handler.removeCallbacks(convergeTimeoutCallback);
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+        }
+
+        /**
+         * The camera and capture session that are kept open between captures.
+         */
+        static class CameraSession {
+            final String cameraId;
+            final String format;
+            Size captureSize;
+            CameraCharacteristics characteristics;
+            CameraDevice device;
+            CameraCaptureSession captureSession;
+            ImageReader imageReader;
+            SurfaceTexture previewTexture;
+            Surface previewSurface;
+            MediaCodec encoder;
+            Surface encoderSurface;
+            final List<Surface> outputSurfaces = new ArrayList<>();
+
+            int autoExposureMode;
+            boolean hasAutoFocus;
+            /** The idle timeout of the last capture. */
+            int idleTimeout;
+
+            CameraSession(String cameraId, String format) {
+                this.cameraId = cameraId;
+                this.format = format;
+            }
+
+            /** Whether {@code job} can be captured with this session without reconfiguring it. */
+            boolean matches(CaptureJob job) {
+                if (CaptureJob.isStream(format) || !cameraId.equals(job.cameraId) || !format.equals(job.getSessionFormat())) return false;
+                if (characteristics == null || captureSize == null) return false;
+                try {
+                    return captureSize.equals(selectCaptureSize(characteristics, job));
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+            }
+
+            void close() {
+                if (captureSession != null) {
+                    try {
+                        captureSession.close();
+                    } catch (RuntimeException e) {
+                        Logger.logInfo(LOG_TAG, "Exception closing capture session: " + e.getMessage());
+                    }
+                    captureSession = null;
+                }
+                if (device != null) {
+                    closeCamera(device);
+                    device = null;
+                }
+                if (imageReader != null) {
+                    imageReader.close();
+                    imageReader = null;
+                }
+                if (!outputSurfaces.isEmpty()) {
+                    releaseSurfaces(outputSurfaces);
+                    outputSurfaces.clear();
+                }
+                if (previewTexture != null) {
+                    previewTexture.release();
+                    previewTexture = null;
+                }
+                if (encoder != null) {
+                    try {
+                        encoder.stop();
+                    } catch (IllegalStateException e) {
+                        Logger.logInfo(LOG_TAG, "Exception stopping encoder: " + e.getMessage());
+                    }
+                    encoder.release();
+                    encoder = null;
+                    encoderSurface = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * A single capture request of one or more frames, which is completed on the service thread and
+     * waited for by the result writer thread.
+     */
+    static class CaptureJob {
+        static final String FORMAT_JPEG = "jpeg";
+        static final String FORMAT_YUV = "yuv";
+        static final String FORMAT_RAW = "raw";
+        static final String STREAM_H264 = "h264";
+        static final String STREAM_MJPEG = "mjpeg";
+
+        static final int DEFAULT_STREAM_WIDTH = 1280;
+        static final int DEFAULT_STREAM_HEIGHT = 720;
+        static final int DEFAULT_STREAM_FPS = 30;
+        static final int DEFAULT_STREAM_DURATION = 60 * 1000;
+
+        final String filePath;
+        final String cameraId;
+        final int idleTimeout;
+        final int convergeTimeout;
+        /** The number of frames, or `0` for no limit in interval captures. */
+        final int count;
+        /** The time in milliseconds between frames of an interval capture, or `0` for a burst. */
+        final int interval;
+        /**
+         * The time in milliseconds after which an interval capture ends, or `0` for no limit. Streams
+         * always have a limit, so that they do not hold up the captures queued after them forever.
+         */
+        final int duration;
+        final String format;
+        /** The JPEG quality from `1` to `100`, or `0` for the default. */
+        final int quality;
+        /** The stream format, or `null` to save frames to files. */
+        final String stream;
+        final int fps;
+        /** The H.264 bitrate in bits per second, or `0` for a default based on the size. */
+        final int bitrate;
+        private final String sizeValue;
+        private final String aspectValue;
+
+        /** The requested size, or `0` for the largest. */
+        int width;
+        int height;
+        /** The requested aspect ratio, or `0` for any. */
+        float aspect;
+
+        File outputFile;
+        volatile String error;
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch streamStarted = new CountDownLatch(1);
+        volatile ParcelFileDescriptor.AutoCloseOutputStream streamOutput;
+        /** Whether a streamed MJPEG frame is still being written on the I/O thread. */
+        volatile boolean streamWritePending;
+        /** The {@link SystemClock#elapsedRealtime()} at which the current stream write started, or `0`. */
+        volatile long streamWriteStartTime;
+
+        // Only accessed on the service thread.
+        boolean captureStarted;
+        CaptureRequest stillRequest;
+        CameraCaptureSession.CaptureCallback captureCallback;
+        CameraCharacteristics characteristics;
+        int orientation;
+        int outputWidth;
+        int outputHeight;
+        long startTime;
+        int issued;
+        /** The interval frames that were skipped because too many frames were in flight. */
+        int skipped;
+        boolean scheduleDone;
+        int completed;
+        int saved;
+        private final Map<Long, Frame> framesByTimestamp = new HashMap<>();
+        private final List<Frame> frames = new ArrayList<>();
+
+        CaptureJob(Intent intent) {
+            filePath = intent.getStringExtra("file");
+            cameraId = Objects.toString(intent.getStringExtra("camera"), "0");
+            idleTimeout = Math.max(0, intent.getIntExtra("idle-timeout", 0));
+            convergeTimeout = Math.max(0, intent.getIntExtra("converge-timeout", CameraService.DEFAULT_CONVERGE_TIMEOUT));
+            interval = Math.max(0, intent.getIntExtra("interval", 0));
+            String streamValue = intent.getStringExtra("stream");
+            stream = streamValue != null ? streamValue.toLowerCase(Locale.ROOT) : null;
+            duration = stream != null ? Math.max(1, intent.getIntExtra("duration", DEFAULT_STREAM_DURATION)) :
+                    Math.max(0, intent.getIntExtra("duration", 0));
+            count = Math.max(interval > 0 ? 0 : 1, intent.getIntExtra("count", interval > 0 ? 0 : 1));
+            format = Objects.toString(intent.getStringExtra("format"), FORMAT_JPEG).toLowerCase(Locale.ROOT);
+            quality = Math.max(0, Math.min(100, intent.getIntExtra("quality", 0)));
+            sizeValue = intent.getStringExtra("size");
+            aspectValue = intent.getStringExtra("aspect");
+            fps = Math.max(1, intent.getIntExtra("fps", DEFAULT_STREAM_FPS));
+            bitrate = Math.max(0, intent.getIntExtra("bitrate", 0));
+        }
+
+        static boolean isStream(String format) {
+            return STREAM_H264.equals(format) || STREAM_MJPEG.equals(format);
+        }
+
+        /** The format the session has to be configured with for this job. */
+        String getSessionFormat() {
+            if (STREAM_H264.equals(stream)) return STREAM_H264;
+            // Streamed MJPEG frames are JPEG images from the camera encoder.
+            if (STREAM_MJPEG.equals(stream)) return STREAM_MJPEG;
+            return format;
+        }
+
+        /** Validate the extras and output file path, and return an error message if they are not valid. */
+        String validate() {
+            if (stream != null) {
+                if (!isStream(stream)) {
+                    return "Unsupported stream '" + stream + "' - only '" + STREAM_H264 + "' and '" + STREAM_MJPEG + "' supported";
+                }
+                return validateSize();
+            }
+            if (filePath == null || filePath.isEmpty()) {
+                return "File path not passed";
+            }
+            if (interval > 0 && count == 0 && duration == 0) {
+                return "Interval capture needs a count or duration";
+            }
+            if (!FORMAT_JPEG.equals(format) && !FORMAT_YUV.equals(format) && !FORMAT_RAW.equals(format)) {
+                return "Unsupported format '" + format + "' - only '" + FORMAT_JPEG + "', '" + FORMAT_YUV + "' and '" + FORMAT_RAW + "' supported";
+            }
+            String sizeError = validateSize();
+            if (sizeError != null) {
+                return sizeError;
+            }
+
+            // Get canonical path of photoFilePath
+            String photoFilePath = TermuxFileUtils.getCanonicalPath(filePath, null, true);
+            String photoDirPath = FileUtils.getFileDirname(photoFilePath);
+            Logger.logVerbose(LOG_TAG, "photoFilePath=\"" + photoFilePath + "\", photoDirPath=\"" + photoDirPath + "\"");
+
+            // If workingDirectory is not a directory, or is not readable or writable, then just return
+            // Creation of missing directory and setting of read, write and execute permissions are only done if workingDirectory is
+            // under allowed termux working directory paths.
+            // We try to set execute permissions, but ignore if they are missing, since only read and write permissions are required
+            // for working directories.
+            Error error = TermuxFileUtils.validateDirectoryFileExistenceAndPermissions("photo directory", photoDirPath,
+                    true, true, true,
+                    false, true);
+            if (error != null) {
+                return error.getErrorLogString();
+            }
+
+            outputFile = new File(photoFilePath);
+            return null;
+        }
+
+        /** Parse the `size` and `aspect` extras, and return an error message if they are not valid. */
+        private String validateSize() {
+            if (sizeValue != null) {
+                String[] parts = sizeValue.toLowerCase(Locale.ROOT).split("x");
+                try {
+                    width = parts.length == 2 ? Integer.parseInt(parts[0].trim()) : -1;
+                    height = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : -1;
+                } catch (NumberFormatException e) {
+                    width = -1;
+                }
+                if (width <= 0 || height <= 0) {
+                    return "Invalid size '" + sizeValue + "' - expected 'WIDTHxHEIGHT'";
+                }
+            }
+            if (aspectValue != null) {
+                String[] parts = aspectValue.split(":");
+                try {
+                    aspect = parts.length == 2 ? Float.parseFloat(parts[0].trim()) / Float.parseFloat(parts[1].trim()) :
+                            Float.parseFloat(aspectValue.trim());
+                } catch (NumberFormatException e) {
+                    aspect = -1;
+                }
+                if (!(aspect > 0) || Float.isInfinite(aspect)) {
+                    return "Invalid aspect '" + aspectValue + "' - expected 'WIDTH:HEIGHT'";
+                }
+            }
+            return null;
+        }
+
+        /** The time the result writer waits for the job. */
+        long getTimeout() {
+            long captureTime = interval > 0 ? (duration > 0 ? duration : (long) count * interval) : 0;
+            return convergeTimeout + captureTime + CameraService.CAPTURE_TIMEOUT;
+        }
+
+        /**
+         * Set the output size for {@code captureSize}. YUV frames are downscaled to fit the
+         * requested size, keeping the aspect ratio of the capture size.
+         */
+        void setOutputSize(Size captureSize) {
+            outputWidth = captureSize.getWidth();
+            outputHeight = captureSize.getHeight();
+            if (FORMAT_YUV.equals(format) && width > 0) {
+                boolean landscape = outputWidth >= outputHeight;
+                int targetWidth = landscape ? Math.max(width, height) : Math.min(width, height);
+                int targetHeight = landscape ? Math.min(width, height) : Math.max(width, height);
+                float scale = Math.min(1, Math.min((float) targetWidth / outputWidth, (float) targetHeight / outputHeight));
+                // NV21 needs even dimensions.
+                outputWidth = Math.max(2, Math.round(outputWidth * scale) & ~1);
+                outputHeight = Math.max(2, Math.round(outputHeight * scale) & ~1);
+            }
+        }
+
+        /** The frames that were issued and whose image is not yet saved, dropped or known to be missing. */
+        int getFramesInFlight() {
+            return issued - saved;
+        }
+
+        boolean isMultiFrame() {
+            return interval > 0 || count > 1;
+        }
+
+        /** Get the frame captured at the sensor {@code timestamp}, adding it if it is new. */
+        Frame getFrame(long timestamp) {
+            Frame frame = framesByTimestamp.get(timestamp);
+            if (frame == null) {
+                frame = new Frame(frames.size(), timestamp);
+                framesByTimestamp.put(timestamp, frame);
+                frames.add(frame);
+            }
+            return frame;
+        }
+
+        /** Get the frame with the camera {@code frameNumber}, or `null` if its capture has not started. */
+        Frame findFrame(long frameNumber) {
+            for (int i = frames.size() - 1; i >= 0; i--) {
+                Frame frame = frames.get(i);
+                if (frame.frameNumber == frameNumber) return frame;
+            }
+            return null;
+        }
+
+        /** Get the file of frame {@code index}, which is `file` itself for single frame captures. */
+        File getFrameFile(int index) {
+            if (!isMultiFrame()) return outputFile;
+            return new File(getBasePath() + String.format(Locale.ROOT, "-%04d", index + 1) + getExtension());
+        }
+
+        File getManifestFile() {
+            return new File(getBasePath() + ".json");
+        }
+
+        private String getBasePath() {
+            String path = outputFile.getPath();
+            return path.substring(0, path.length() - getExtension().length());
+        }
+
+        private String getExtension() {
+            String name = outputFile.getName();
+            int dot = name.lastIndexOf('.');
+            return dot > 0 ? name.substring(dot) : "";
+        }
+
+        /** Write the manifest of all frames that were saved. */
+        void writeManifest(String cameraId) throws IOException {
+            try (JsonWriter out = new JsonWriter(new OutputStreamWriter(new FileOutputStream(getManifestFile()), StandardCharsets.UTF_8))) {
+                out.setIndent("  ");
+                out.beginObject();
+                out.name("camera").value(cameraId);
+                out.name("format").value(format);
+                out.name("width").value(outputWidth);
+                out.name("height").value(outputHeight);
+                out.name("frames").beginArray();
+                for (Frame frame : frames) {
+                    if (frame.file == null) continue;
+                    out.beginObject();
+                    out.name("file").value(frame.file.getName());
+                    out.name("time").value(frame.time);
+                    out.name("timestamp_ns").value(frame.timestamp);
+                    if (frame.result != null) {
+                        writeResultValue(out, "exposure_time_ns", frame.result.get(CaptureResult.SENSOR_EXPOSURE_TIME));
+                        writeResultValue(out, "frame_duration_ns", frame.result.get(CaptureResult.SENSOR_FRAME_DURATION));
+                        writeResultValue(out, "sensitivity", frame.result.get(CaptureResult.SENSOR_SENSITIVITY));
+                        writeResultValue(out, "aperture", frame.result.get(CaptureResult.LENS_APERTURE));
+                        writeResultValue(out, "focus_distance", frame.result.get(CaptureResult.LENS_FOCUS_DISTANCE));
+                        writeResultValue(out, "ae_state", frame.result.get(CaptureResult.CONTROL_AE_STATE));
+                        writeResultValue(out, "af_state", frame.result.get(CaptureResult.CONTROL_AF_STATE));
+                    }
+                    out.endObject();
+                }
+                out.endArray();
+                out.endObject();
+            }
+        }
+
+        private static void writeResultValue(JsonWriter out, String name, Number value) throws IOException {
+            if (value != null) out.name(name).value(value);
+        }
+
+        void finish(String error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        /** Close the stream pipe on the I/O thread, after the frames that are already queued. */
+        void closeStream(Handler ioHandler) {
+            final ParcelFileDescriptor.AutoCloseOutputStream output = streamOutput;
+            if (output == null) return;
+            streamOutput = null;
+            ioHandler.post(() -> {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Failed to close stream", e);
+                }
+            });
+        }
+
+        /** Close the stream pipe right away, which also fails a write that is blocked on it. */
+        void closeStreamNow() {
+            final ParcelFileDescriptor.AutoCloseOutputStream output = streamOutput;
+            if (output == null) return;
+            streamOutput = null;
+            try {
+                output.close();
+            } catch (IOException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to close stream", e);
+            }
+        }
+
+        /** Close the raw images that are still waiting for their capture result. */
+        void closeImages() {
+            for (Frame frame : frames) {
+                if (frame.image != null) {
+                    frame.image.close();
+                    frame.image = null;
+                }
+            }
+        }
+
+        static class Frame {
+            final int index;
+            final long timestamp;
+            long frameNumber = -1;
+            long time;
+            File file;
+            TotalCaptureResult result;
+            /** A raw image waiting for its capture result. */
+            Image image;
+            /** Whether the capture failed, so that its image is dropped. */
+            boolean failed;
+
+            Frame(int index, long timestamp) {
+                this.index = index;
+                this.timestamp = timestamp;
+            }
+        }
     }
 
     /**
@@ -279,13 +1588,12 @@ public class CameraPhotoAPI {
         Logger.logInfo(LOG_TAG, "surfaces released");
     }
 
-    static void closeCamera(CameraDevice camera, Looper looper) {
+    static void closeCamera(CameraDevice camera) {
         try {
             camera.close();
         } catch (RuntimeException e) {
             Logger.logInfo(LOG_TAG, "Exception closing camera: " + e.getMessage());
         }
-        if (looper != null) looper.quit();
     }
 
 }
\ No newline at end of file
@@ -4,64 +4,191 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.provider.BaseColumns;
-import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.telephony.PhoneNumberUtils;
 import android.util.JsonWriter;
-import android.util.SparseArray;
 
 import com.termux.api.TermuxApiReceiver;
 import com.termux.api.util.ResultReturner;
 import com.termux.api.util.ResultReturner.ResultJsonWriter;
 import com.termux.shared.logger.Logger;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * API that lists contacts with all their phone numbers, emails and organizations.
+ *
+ * The contact data rows are queried from {@link Data#CONTENT_URI} ordered by display name, like the
+ * API always has, and joined into one object per contact in a single forward pass over the cursor,
+ * so that only the data for the current contact is held in memory. Numbers and emails that are the
+ * same in multiple linked raw contacts are only returned once.
+ *
+ * Large address books can be paged with the `limit` extra, passing the `id` of the last returned
+ * contact as the `after` extra of the next call. Passing the `since` extra as the epoch milliseconds
+ * of the largest `updated` value seen returns only contacts that were updated after it. If any of
+ * these extras is passed, then contacts are ordered by `id` instead, so that pages are stable.
+ *
+ * - https://developer.android.com/reference/android/provider/ContactsContract.Data
+ */
 public class ContactListAPI {
 
     private static final String LOG_TAG = "ContactListAPI";
 
+    private static final String[] DATA_PROJECTION = {Data.CONTACT_ID, Data.DISPLAY_NAME, Data.MIMETYPE,
+            Data.DATA1, Organization.TITLE, Data.IS_PRIMARY, Data.CONTACT_LAST_UPDATED_TIMESTAMP};
+
     public static void onReceive(TermuxApiReceiver apiReceiver, final Context context, Intent intent) {
         Logger.logDebug(LOG_TAG, "onReceive");
 
+        final long after = intent.getLongExtra("after", -1);
+        final int limit = intent.getIntExtra("limit", -1);
+        final long since = intent.getLongExtra("since", -1);
+
         ResultReturner.returnData(apiReceiver, intent, new ResultJsonWriter() {
             @Override
             public void writeJson(JsonWriter out) throws Exception {
-                listContacts(context, out);
+                listContacts(context, out, after, limit, since);
             }
         });
     }
 
-    static void listContacts(Context context, JsonWriter out) throws Exception {
+    static void listContacts(Context context, JsonWriter out, long after, int limit, long since) throws Exception {
         ContentResolver cr = context.getContentResolver();
 
-        SparseArray<String> contactIdToNumberMap = new SparseArray<>();
-        String[] projection = {Phone.NUMBER, Phone.CONTACT_ID};
-        String selection = Phone.CONTACT_ID + " IS NOT NULL AND " + Phone.NUMBER + " IS NOT NULL";
-        try (Cursor phones = cr.query(Phone.CONTENT_URI, projection, selection, null, null)) {
-            int phoneNumberIdx = phones.getColumnIndexOrThrow(Phone.NUMBER);
-            int phoneContactIdIdx = phones.getColumnIndexOrThrow(Phone.CONTACT_ID);
-            while (phones.moveToNext()) {
-                String number = phones.getString(phoneNumberIdx);
-                int contactId = phones.getInt(phoneContactIdIdx);
-                // int type = phones.getInt(phones.getColumnIndex(Phone.TYPE));
-                contactIdToNumberMap.put(contactId, number);
-            }
+        List<String> selectionArgs = new ArrayList<>();
+        StringBuilder selection = new StringBuilder();
+        selection.append(Data.MIMETYPE).append(" IN (?,?,?)");
+        selectionArgs.add(Phone.CONTENT_ITEM_TYPE);
+        selectionArgs.add(Email.CONTENT_ITEM_TYPE);
+        selectionArgs.add(Organization.CONTENT_ITEM_TYPE);
+        if (after >= 0) {
+            selection.append(" AND ").append(Data.CONTACT_ID).append(" > ?");
+            selectionArgs.add(String.valueOf(after));
+        }
+        if (since >= 0) {
+            selection.append(" AND ").append(Data.CONTACT_LAST_UPDATED_TIMESTAMP).append(" > ?");
+            selectionArgs.add(String.valueOf(since));
         }
 
+        // The rows of a contact must be adjacent, so the contact id is always part of the order.
+        String sortOrder = (after >= 0 || limit >= 0 || since >= 0 ? "" : Data.DISPLAY_NAME + ", ") +
+                Data.CONTACT_ID + " ASC, " + Data.IS_PRIMARY + " DESC";
+
         out.beginArray();
-        try (Cursor cursor = cr.query(ContactsContract.Contacts.CONTENT_URI, null, null, null, ContactsContract.Contacts.DISPLAY_NAME)) {
-            int contactDisplayNameIdx = cursor.getColumnIndexOrThrow(ContactsContract.Contacts.DISPLAY_NAME);
-            int contactIdIdx = cursor.getColumnIndex(BaseColumns._ID);
+        try (Cursor cursor = cr.query(Data.CONTENT_URI, DATA_PROJECTION, selection.toString(),
+                selectionArgs.toArray(new String[0]), sortOrder)) {
+            int contactIdIdx = cursor.getColumnIndexOrThrow(Data.CONTACT_ID);
+            int displayNameIdx = cursor.getColumnIndexOrThrow(Data.DISPLAY_NAME);
+            int mimeTypeIdx = cursor.getColumnIndexOrThrow(Data.MIMETYPE);
+            int data1Idx = cursor.getColumnIndexOrThrow(Data.DATA1);
+            int titleIdx = cursor.getColumnIndexOrThrow(Organization.TITLE);
+            int updatedIdx = cursor.getColumnIndexOrThrow(Data.CONTACT_LAST_UPDATED_TIMESTAMP);
 
+            ContactRecord contact = new ContactRecord();
+            int count = 0;
             while (cursor.moveToNext()) {
-                int contactId = cursor.getInt(contactIdIdx);
-                String number = contactIdToNumberMap.get(contactId);
-                if (number != null) {
-                    String contactName = cursor.getString(contactDisplayNameIdx);
-                    out.beginObject().name("name").value(contactName).name("number").value(number).endObject();
+                long contactId = cursor.getLong(contactIdIdx);
+                if (contactId != contact.id) {
+                    if (contact.write(out)) count++;
+                    contact.clear();
+                    if (limit >= 0 && count >= limit) break;
+
+                    contact.id = contactId;
+                    contact.name = cursor.getString(displayNameIdx);
+                    contact.updated = cursor.getLong(updatedIdx);
+                }
+
+                String data = cursor.getString(data1Idx);
+                switch (cursor.getString(mimeTypeIdx)) {
+                    case Phone.CONTENT_ITEM_TYPE:
+                        contact.addNumber(data);
+                        break;
+                    case Email.CONTENT_ITEM_TYPE:
+                        contact.addEmail(data);
+                        break;
+                    case Organization.CONTENT_ITEM_TYPE:
+                        if (contact.organization == null) {
+                            contact.organization = data;
+                            contact.title = cursor.getString(titleIdx);
+                        }
+                        break;
                 }
             }
-        } finally {
+            contact.write(out);
+        }
+        out.endArray();
+    }
+
+    /**
+     * The data of the contact currently being joined. It is reused for every contact.
+     */
+    private static class ContactRecord {
+        long id = -1;
+        String name;
+        long updated;
+        final List<String> numbers = new ArrayList<>();
+        final List<String> emails = new ArrayList<>();
+        String organization;
+        String title;
+        /** The normalized numbers and lower case emails added, to skip the ones of linked raw contacts. */
+        final Set<String> seen = new HashSet<>();
+
+        void addNumber(String number) {
+            if (number == null) return;
+            String normalized = PhoneNumberUtils.normalizeNumber(number);
+            if (seen.add("tel:" + (normalized.isEmpty() ? number : normalized)))
+                numbers.add(number);
+        }
+
+        void addEmail(String email) {
+            if (email == null) return;
+            if (seen.add("mailto:" + email.toLowerCase(Locale.ROOT)))
+                emails.add(email);
+        }
+
+        void clear() {
+            id = -1;
+            name = null;
+            updated = 0;
+            numbers.clear();
+            emails.clear();
+            organization = null;
+            title = null;
+            seen.clear();
+        }
+
+        /**
+         * Write the contact if it has a phone number, like the API always has, and return whether
+         * it was written. The `number` is the primary number, or the first one if none is primary.
+         */
+        boolean write(JsonWriter out) throws IOException {
+            if (id < 0 || numbers.isEmpty()) return false;
+
+            out.beginObject();
+            out.name("id").value(id);
+            out.name("name").value(name);
+            out.name("number").value(numbers.get(0));
+            out.name("numbers").beginArray();
+            for (String number : numbers) out.value(number);
             out.endArray();
+            out.name("emails").beginArray();
+            for (String email : emails) out.value(email);
+            out.endArray();
+            if (organization != null) {
+                out.name("organization").value(organization);
+                if (title != null) out.name("title").value(title);
+            }
+            out.name("updated").value(updated);
+            out.endObject();
+            return true;
         }
     }
 }
@@ -7,18 +7,16 @@ import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
 import android.os.Build;
 import android.os.PersistableBundle;
 import androidx.annotation.RequiresApi;
 import android.text.TextUtils;
 
 import com.termux.api.TermuxApiReceiver;
+import com.termux.api.util.PluginUtils;
 import com.termux.api.util.ResultReturner;
 import com.termux.shared.logger.Logger;
-import com.termux.shared.shell.command.ExecutionCommand;
 import com.termux.shared.termux.TermuxConstants;
-import com.termux.shared.termux.TermuxConstants.TERMUX_APP.TERMUX_SERVICE;
 
 import java.io.File;
 import java.io.PrintWriter;
@@ -139,20 +137,10 @@ public class JobSchedulerAPI {
         }
 
         File file = new File(scriptPath);
-        String fileCheckMsg;
-        if (!file.isFile()) {
-            fileCheckMsg = "No such file: %s";
-        } else if (!file.canRead()) {
-            fileCheckMsg = "Cannot read file: %s";
-        } else if (!file.canExecute()) {
-            fileCheckMsg = "Cannot execute file: %s";
-        } else {
-            fileCheckMsg = "";
-        }
-
-        if (!fileCheckMsg.isEmpty()) {
-            Logger.logErrorPrivate(LOG_TAG, "schedule_job: " + String.format(fileCheckMsg, scriptPath));
-            out.println(String.format(fileCheckMsg, scriptPath));
+        String fileCheckMsg = PluginUtils.getScriptFileError(scriptPath);
+        if (fileCheckMsg != null) {
+            Logger.logErrorPrivate(LOG_TAG, "schedule_job: " + fileCheckMsg);
+            out.println(fileCheckMsg);
             return;
         }
 
@@ -280,23 +268,7 @@ public class JobSchedulerAPI {
             PersistableBundle extras = params.getExtras();
             String filePath = extras.getString(SCRIPT_FILE_PATH);
 
-            ExecutionCommand executionCommand = new ExecutionCommand();
-            executionCommand.executableUri = new Uri.Builder().scheme(TERMUX_SERVICE.URI_SCHEME_SERVICE_EXECUTE).path(filePath).build();
-            executionCommand.runner = ExecutionCommand.Runner.APP_SHELL.getName();
-
-            // Create execution intent with the action TERMUX_SERVICE#ACTION_SERVICE_EXECUTE to be sent to the TERMUX_SERVICE
-            Intent executionIntent = new Intent(TERMUX_SERVICE.ACTION_SERVICE_EXECUTE, executionCommand.executableUri);
-            executionIntent.setClassName(TermuxConstants.TERMUX_PACKAGE_NAME, TermuxConstants.TERMUX_APP.TERMUX_SERVICE_NAME);
-            executionIntent.putExtra(TERMUX_SERVICE.EXTRA_RUNNER, executionCommand.runner);
-            executionIntent.putExtra(TERMUX_SERVICE.EXTRA_BACKGROUND, true); // Also pass in case user using termux-app version < 0.119.0
-
-            Context context = getApplicationContext();
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                // https://developer.android.com/about/versions/oreo/background.html
-                context.startForegroundService(executionIntent);
-            } else {
-                context.startService(executionIntent);
-            }
+            PluginUtils.runScript(getApplicationContext(), filePath, null);
 
             Logger.logInfo(LOG_TAG, "Job started for \"" + filePath + "\"");
 
@@ -1,13 +1,23 @@
 package com.termux.api.apis;
 
 import android.Manifest;
+import android.annotation.SuppressLint;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.location.GnssMeasurement;
+import android.location.GnssMeasurementsEvent;
+import android.location.GnssStatus;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.location.LocationRequest;
+import android.net.LocalSocket;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.util.JsonWriter;
@@ -15,11 +25,22 @@ import android.util.JsonWriter;
 import androidx.annotation.RequiresPermission;
 
 import com.termux.api.TermuxApiReceiver;
+import com.termux.api.util.PluginUtils;
 import com.termux.api.util.ResultReturner;
 import com.termux.api.util.ResultReturner.ResultJsonWriter;
 import com.termux.shared.logger.Logger;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class LocationAPI {
 
@@ -28,21 +49,42 @@ public class LocationAPI {
     private static final String REQUEST_LAST_KNOWN = "last";
     private static final String REQUEST_ONCE = "once";
     private static final String REQUEST_UPDATES = "updates";
+    private static final String REQUEST_FLUSH = "flush";
+    private static final String REQUEST_GEOFENCE = "geofence";
+    private static final String REQUEST_GEOFENCE_STOP = "geofence-stop";
+    private static final String REQUEST_GNSS = "gnss";
 
     public static void onReceive(TermuxApiReceiver apiReceiver, final Context context, final Intent intent) {
         Logger.logDebug(LOG_TAG, "onReceive");
 
+        String value = intent.getStringExtra("provider");
+        if (value == null)
+            value = LocationManager.GPS_PROVIDER;
+        final String provider = value;
+
+        value = intent.getStringExtra("request");
+        if (value == null)
+            value = REQUEST_ONCE;
+        final String request = value;
+
+        // Updates and geofence events are streamed by the LocationService, which writes to the output
+        // socket itself.
+        if ((isSupportedProvider(provider) && request.equals(REQUEST_UPDATES)) || request.equals(REQUEST_FLUSH) ||
+                request.equals(REQUEST_GEOFENCE) || request.equals(REQUEST_GEOFENCE_STOP) || request.equals(REQUEST_GNSS)) {
+            Intent serviceIntent = new Intent(context, LocationService.class);
+            serviceIntent.putExtras(intent.getExtras());
+            serviceIntent.putExtra("provider", provider);
+            context.startService(serviceIntent);
+            return;
+        }
+
         ResultReturner.returnData(apiReceiver, intent, new ResultJsonWriter() {
             @RequiresPermission(Manifest.permission.ACCESS_FINE_LOCATION)
             @Override
             public void writeJson(final JsonWriter out) throws Exception {
                 LocationManager manager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
 
-                String provider = intent.getStringExtra("provider");
-                if (provider == null)
-                    provider = LocationManager.GPS_PROVIDER;
-                if (!(provider.equals(LocationManager.GPS_PROVIDER) || provider.equals(LocationManager.NETWORK_PROVIDER) || provider
-                        .equals(LocationManager.PASSIVE_PROVIDER))) {
+                if (!isSupportedProvider(provider)) {
                     out.beginObject()
                             .name("API_ERROR")
                             .value("Unsupported provider '" + provider + "' - only '" + LocationManager.GPS_PROVIDER + "', '"
@@ -50,15 +92,24 @@ public class LocationAPI {
                     return;
                 }
 
-                String request = intent.getStringExtra("request");
-                if (request == null)
-                    request = REQUEST_ONCE;
                 switch (request) {
                     case REQUEST_LAST_KNOWN:
                         Location lastKnownLocation = manager.getLastKnownLocation(provider);
                         locationToJson(lastKnownLocation, out);
                         break;
                     case REQUEST_ONCE:
+                        // If `max-age-ms` is passed, return a cached fix immediately if it is recent
+                        // and accurate enough, otherwise fall back to an active request.
+                        long maxAgeMs = intent.getLongExtra("max-age-ms", -1);
+                        if (maxAgeMs >= 0) {
+                            Location cachedLocation = LocationCache.get(context, maxAgeMs,
+                                    intent.getFloatExtra("min-accuracy", 0));
+                            if (cachedLocation != null) {
+                                locationToJson(cachedLocation, out);
+                                break;
+                            }
+                        }
+
                         Looper.prepare();
                         manager.requestSingleUpdate(provider, new LocationListener() {
 
@@ -79,6 +130,7 @@ public class LocationAPI {
 
                             @Override
                             public void onLocationChanged(Location location) {
+                                LocationCache.offer(location);
                                 try {
                                     locationToJson(location, out);
                                 } catch (IOException e) {
@@ -90,59 +142,22 @@ public class LocationAPI {
                         }, null);
                         Looper.loop();
                         break;
-                    case REQUEST_UPDATES:
-                        Looper.prepare();
-                        manager.requestLocationUpdates(provider, 5000, 50.f, new LocationListener() {
-
-                            @Override
-                            public void onStatusChanged(String changedProvider, int status, Bundle extras) {
-                                // Do nothing.
-                            }
-
-                            @Override
-                            public void onProviderEnabled(String changedProvider) {
-                                // Do nothing.
-                            }
-
-                            @Override
-                            public void onProviderDisabled(String changedProvider) {
-                                // Do nothing.
-                            }
-
-                            @Override
-                            public void onLocationChanged(Location location) {
-                                try {
-                                    locationToJson(location, out);
-                                    out.flush();
-                                } catch (IOException e) {
-                                    Logger.logStackTraceWithMessage(LOG_TAG, "Writing json", e);
-                                }
-                            }
-                        }, null);
-                        final Looper looper = Looper.myLooper();
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                try {
-                                    Thread.sleep(30 * 1000);
-                                } catch (InterruptedException e) {
-                                    Logger.logStackTraceWithMessage(LOG_TAG, "INTER", e);
-                                }
-                                looper.quit();
-                            }
-                        }.start();
-                        Looper.loop();
-                        break;
                     default:
                         out.beginObject()
                                 .name("API_ERROR")
-                                .value("Unsupported request '" + request + "' - only '" + REQUEST_LAST_KNOWN + "', '" + REQUEST_ONCE + "' and '" + REQUEST_UPDATES
-                                        + "' supported").endObject();
+                                .value("Unsupported request '" + request + "' - only '" + REQUEST_LAST_KNOWN + "', '" + REQUEST_ONCE + "', '" + REQUEST_UPDATES
+                                        + "', '" + REQUEST_FLUSH + "', '" + REQUEST_GEOFENCE + "', '" + REQUEST_GEOFENCE_STOP
+                                        + "' and '" + REQUEST_GNSS + "' supported").endObject();
                 }
             }
         });
     }
 
+    private static boolean isSupportedProvider(String provider) {
+        return provider.equals(LocationManager.GPS_PROVIDER) || provider.equals(LocationManager.NETWORK_PROVIDER) ||
+                provider.equals(LocationManager.PASSIVE_PROVIDER);
+    }
+
     static void locationToJson(Location lastKnownLocation, JsonWriter out) throws IOException {
         if (lastKnownLocation == null) {
             out.beginObject().name("API_ERROR").value("Failed to get location").endObject();
@@ -163,4 +178,1139 @@ public class LocationAPI {
         out.name("provider").value(lastKnownLocation.getProvider());
         out.endObject();
     }
+
+
+
+    /**
+     * Long-lived service that streams location updates to subscribers as NDJSON, one compact JSON
+     * object per line.
+     *
+     * All subscribers of the same provider share a single {@link LocationManager} registration,
+     * which is requested with the smallest interval and distance of its subscribers, and each
+     * subscriber then only receives the fixes that satisfy its own interval and distance. A
+     * subscriber may use multiple providers, which can change while it is running. A registration
+     * is removed when its last subscriber finishes, and the service stops itself when there are no
+     * subscribers left.
+     *
+     * Subscribers that pass the `batch-delay` extra receive fixes in batches, written as a single
+     * JSON array line, which trades latency for fewer wakeups and socket writes. If all subscribers
+     * of a provider are batched, on Android `>= 12` the registration is requested with a
+     * {@link LocationRequest} max update delay, so that fixes are batched by the location provider
+     * or hardware instead of waking up the app for each one. On older versions, fixes are batched
+     * by the service. The `flush` request delivers all pending batches immediately.
+     *
+     * The `geofence` request adds a {@link GeofenceSubscriber}, which pushes enter, exit and dwell
+     * events instead of fixes, and the `geofence-stop` request removes the fences named in its
+     * comma separated `ids` extra. The `gnss` request adds a {@link GnssSubscriber}, which streams satellite status and raw measurements.
+     *
+     * All state is only accessed on the service {@link HandlerThread}, which is also the looper the
+     * location callbacks are delivered on.
+     */
+    public static class LocationService extends Service {
+
+        private static final String LOG_TAG = "LocationService";
+
+        /** Defaults match the previous hardcoded `updates` request. */
+        static final long DEFAULT_INTERVAL = 5000;
+        static final float DEFAULT_DISTANCE = 50.f;
+        static final long DEFAULT_DURATION = 30 * 1000;
+
+        private HandlerThread handlerThread;
+        private Handler handler;
+        private LocationManager manager;
+
+        private final Set<Subscriber> subscribers = new LinkedHashSet<>();
+        private final Map<String, ProviderRegistration> registrations = new HashMap<>();
+
+        /**
+         * The start id of the latest command handled on the service thread. Stopping with it fails
+         * if a newer command was started, which is then still queued and will be handled.
+         */
+        private int lastHandledStartId;
+
+        @Override
+        public void onCreate() {
+            Logger.logDebug(LOG_TAG, "onCreate");
+
+            super.onCreate();
+            manager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+            handlerThread = new HandlerThread(LOG_TAG);
+            handlerThread.start();
+            handler = new Handler(handlerThread.getLooper());
+        }
+
+        @Override
+        public int onStartCommand(final Intent intent, int flags, int startId) {
+            Logger.logDebug(LOG_TAG, "onStartCommand");
+
+            if (intent != null) {
+                handler.post(() -> handleCommand(intent, startId));
+            }
+            return Service.START_NOT_STICKY;
+        }
+
+        @Override
+        public void onDestroy() {
+            Logger.logDebug(LOG_TAG, "onDestroy");
+
+            super.onDestroy();
+            handler.post(() -> {
+                for (ProviderRegistration registration : registrations.values()) {
+                    registration.unregister();
+                }
+                registrations.clear();
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.close();
+                }
+                subscribers.clear();
+            });
+            handlerThread.quitSafely();
+        }
+
+        @Override
+        public IBinder onBind(Intent intent) {
+            return null;
+        }
+
+        Handler getHandler() {
+            return handler;
+        }
+
+        LocationManager getLocationManager() {
+            return manager;
+        }
+
+        private void handleCommand(Intent intent, int startId) {
+            lastHandledStartId = startId;
+            String request = intent.getStringExtra("request");
+            if (REQUEST_UPDATES.equals(request)) {
+                addSubscriber(new Subscriber(intent));
+            } else if (REQUEST_GEOFENCE.equals(request)) {
+                try {
+                    GeofenceSubscriber geofenceSubscriber = new GeofenceSubscriber(intent);
+                    String usedId = getUsedFenceId(geofenceSubscriber);
+                    if (usedId != null)
+                        throw new IllegalArgumentException("Fence id '" + usedId + "' is already used by another geofence");
+                    addSubscriber(geofenceSubscriber);
+                } catch (IllegalArgumentException e) {
+                    final String message = e.getMessage();
+                    ResultReturner.returnData(this, intent, new ResultJsonWriter() {
+                        @Override
+                        public void writeJson(JsonWriter out) throws Exception {
+                            out.beginObject().name("API_ERROR").value(message).endObject();
+                        }
+                    });
+                }
+            } else if (REQUEST_GNSS.equals(request)) {
+                addSubscriber(new GnssSubscriber(intent));
+            } else if (REQUEST_GEOFENCE_STOP.equals(request)) {
+                String idsValue = intent.getStringExtra("ids");
+                if (idsValue == null || idsValue.trim().isEmpty()) {
+                    ResultReturner.returnData(this, intent, new ResultJsonWriter() {
+                        @Override
+                        public void writeJson(JsonWriter out) throws Exception {
+                            out.beginObject().name("API_ERROR").value("No geofence ids passed - expected ids separated by ','").endObject();
+                        }
+                    });
+                    stopIfIdle();
+                    return;
+                }
+                Set<String> ids = new HashSet<>();
+                for (String id : idsValue.split(",")) {
+                    if (!id.trim().isEmpty()) ids.add(id.trim());
+                }
+
+                int stopped = 0;
+                for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+                    if (subscriber instanceof GeofenceSubscriber) {
+                        GeofenceSubscriber geofenceSubscriber = (GeofenceSubscriber) subscriber;
+                        stopped += geofenceSubscriber.removeFences(ids);
+                        if (geofenceSubscriber.fences.isEmpty())
+                            removeSubscriber(subscriber);
+                    }
+                }
+                final int geofencesStopped = stopped;
+                ResultReturner.returnData(this, intent, new ResultJsonWriter() {
+                    @Override
+                    public void writeJson(JsonWriter out) throws Exception {
+                        out.beginObject().name("stopped").value(geofencesStopped).endObject();
+                    }
+                });
+            } else if (REQUEST_FLUSH.equals(request)) {
+                final int flushed = flush();
+                ResultReturner.returnData(this, intent, new ResultJsonWriter() {
+                    @Override
+                    public void writeJson(JsonWriter out) throws Exception {
+                        out.beginObject().name("flushed").value(flushed).endObject();
+                    }
+                });
+            } else {
+                Logger.logError(LOG_TAG, "Unsupported request '" + request + "'");
+            }
+
+            stopIfIdle();
+        }
+
+        /**
+         * Get the id of a fence of {@code newSubscriber} that is already used by a running geofence,
+         * so that `geofence-stop` only ever removes the fences of a single client.
+         */
+        private String getUsedFenceId(GeofenceSubscriber newSubscriber) {
+            for (Subscriber subscriber : subscribers) {
+                if (!(subscriber instanceof GeofenceSubscriber)) continue;
+                for (GeofenceSubscriber.Fence fence : ((GeofenceSubscriber) subscriber).fences) {
+                    for (GeofenceSubscriber.Fence newFence : newSubscriber.fences) {
+                        if (fence.id.equals(newFence.id)) return fence.id;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void addSubscriber(Subscriber subscriber) {
+            try {
+                subscriber.open(this);
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to connect to subscriber output socket", e);
+                subscriber.close();
+                return;
+            }
+
+            subscribers.add(subscriber);
+            for (String provider : subscriber.providers) {
+                addToRegistration(subscriber, provider);
+            }
+
+            if (subscriber.duration > 0) {
+                handler.postDelayed(() -> removeSubscriber(subscriber), subscriber.duration);
+            }
+            if (subscriber.batchDelay > 0) {
+                scheduleBatchFlush(subscriber);
+            }
+        }
+
+        void removeSubscriber(Subscriber subscriber) {
+            if (!subscribers.remove(subscriber)) return;
+
+            for (String provider : subscriber.providers) {
+                removeFromRegistration(subscriber, provider);
+            }
+            subscriber.close();
+
+            stopIfIdle();
+        }
+
+        /** Change the providers {@code subscriber} receives fixes from. */
+        void setSubscriberProviders(Subscriber subscriber, Set<String> providers) {
+            if (!subscribers.contains(subscriber) || subscriber.providers.equals(providers)) return;
+
+            for (String provider : new ArrayList<>(subscriber.providers)) {
+                if (!providers.contains(provider)) {
+                    subscriber.providers.remove(provider);
+                    removeFromRegistration(subscriber, provider);
+                }
+            }
+            for (String provider : providers) {
+                if (subscriber.providers.add(provider)) {
+                    addToRegistration(subscriber, provider);
+                }
+            }
+        }
+
+        private void addToRegistration(Subscriber subscriber, String provider) {
+            ProviderRegistration registration = registrations.get(provider);
+            if (registration == null) {
+                registration = new ProviderRegistration(provider);
+                registrations.put(provider, registration);
+            }
+            registration.subscribers.add(subscriber);
+            registration.update();
+        }
+
+        private void removeFromRegistration(Subscriber subscriber, String provider) {
+            ProviderRegistration registration = registrations.get(provider);
+            if (registration == null || !registration.subscribers.remove(subscriber)) return;
+
+            if (registration.subscribers.isEmpty()) {
+                registration.unregister();
+                registrations.remove(provider);
+            } else {
+                registration.update();
+            }
+        }
+
+        private void stopIfIdle() {
+            if (subscribers.isEmpty() && stopSelfResult(lastHandledStartId)) {
+                Logger.logDebug(LOG_TAG, "No subscribers left, stopping");
+            }
+        }
+
+        /**
+         * Flush the pending batch of {@code subscriber} every `batch-delay`. Since {@link Handler}
+         * delays do not advance in deep sleep, this does not cause any extra wakeups.
+         */
+        private void scheduleBatchFlush(final Subscriber subscriber) {
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (!subscribers.contains(subscriber)) return;
+
+                    if (subscriber.isBatchDue() && !subscriber.flushPending()) {
+                        removeSubscriber(subscriber);
+                        return;
+                    }
+                    handler.postDelayed(this, subscriber.batchDelay);
+                }
+            }, subscriber.batchDelay);
+        }
+
+        /**
+         * Flush the pending batches of all batched subscribers, and request the location provider to
+         * flush its batched fixes. Returns the number of batched subscribers.
+         */
+        @SuppressLint("MissingPermission")
+        private int flush() {
+            int flushed = 0;
+            for (ProviderRegistration registration : new ArrayList<>(registrations.values())) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && registration.maxUpdateDelay > 0) {
+                    // Pending batches are flushed in onFlushComplete() after batched fixes are delivered.
+                    manager.requestFlush(registration.provider, registration, 0);
+                }
+            }
+
+            for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+                if (subscriber.batchDelay <= 0) continue;
+                flushed++;
+                if (!subscriber.flushPending()) {
+                    removeSubscriber(subscriber);
+                }
+            }
+            return flushed;
+        }
+
+        /**
+         * A single {@link LocationManager} registration for a provider, shared by its subscribers.
+         */
+        private class ProviderRegistration implements LocationListener {
+            final String provider;
+            final Set<Subscriber> subscribers = new LinkedHashSet<>();
+
+            private boolean registered;
+            private long interval;
+            private float distance;
+            /** The max update delay if all subscribers are batched, otherwise `0`. */
+            private long maxUpdateDelay;
+
+            ProviderRegistration(String provider) {
+                this.provider = provider;
+            }
+
+            /**
+             * (Re)register with the smallest interval, distance and batch delay of the subscribers,
+             * if changed.
+             */
+            @SuppressLint("MissingPermission")
+            void update() {
+                long newInterval = Long.MAX_VALUE;
+                float newDistance = Float.MAX_VALUE;
+                long newMaxUpdateDelay = Long.MAX_VALUE;
+                for (Subscriber subscriber : subscribers) {
+                    newInterval = Math.min(newInterval, subscriber.interval);
+                    newDistance = Math.min(newDistance, subscriber.distance);
+                    newMaxUpdateDelay = Math.min(newMaxUpdateDelay, subscriber.batchDelay);
+                }
+
+                if (registered && newInterval == interval && newDistance == distance &&
+                        newMaxUpdateDelay == maxUpdateDelay) return;
+
+                if (registered) manager.removeUpdates(this);
+                interval = newInterval;
+                distance = newDistance;
+                maxUpdateDelay = newMaxUpdateDelay;
+                Logger.logDebug(LOG_TAG, "Requesting \"" + provider + "\" updates with interval " + interval +
+                        "ms, distance " + distance + "m and max update delay " + maxUpdateDelay + "ms for " +
+                        subscribers.size() + " subscribers");
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && maxUpdateDelay > 0) {
+                    LocationRequest locationRequest = new LocationRequest.Builder(interval)
+                            .setMinUpdateDistanceMeters(distance)
+                            .setMaxUpdateDelayMillis(maxUpdateDelay)
+                            .build();
+                    manager.requestLocationUpdates(provider, locationRequest, handler::post, this);
+                } else {
+                    manager.requestLocationUpdates(provider, interval, distance, this, handler.getLooper());
+                }
+                registered = true;
+            }
+
+            void unregister() {
+                if (registered) manager.removeUpdates(this);
+                registered = false;
+            }
+
+            @Override
+            public void onLocationChanged(Location location) {
+                onLocationChanged(Collections.singletonList(location));
+            }
+
+            /** Called with batched fixes on Android `>= 12`. */
+            @Override
+            public void onLocationChanged(List<Location> locations) {
+                if (!locations.isEmpty()) LocationCache.offer(locations.get(locations.size() - 1));
+                for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+                    if (!subscriber.onLocationsChanged(locations)) {
+                        removeSubscriber(subscriber);
+                    }
+                }
+            }
+
+            @Override
+            public void onFlushComplete(int requestCode) {
+                for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+                    if (!subscriber.flushPending()) {
+                        removeSubscriber(subscriber);
+                    }
+                }
+            }
+
+            @Override
+            public void onStatusChanged(String changedProvider, int status, Bundle extras) {
+                // Do nothing.
+            }
+
+            @Override
+            public void onProviderEnabled(String changedProvider) {
+                // Do nothing.
+            }
+
+            @Override
+            public void onProviderDisabled(String changedProvider) {
+                // Do nothing.
+            }
+        }
+    }
+
+    /**
+     * In-app cache of the most recent fix, so that repeated `once` requests can be answered without
+     * starting a new active request.
+     *
+     * It is fed by a passive listener, which receives fixes requested by other apps and the system
+     * without causing any location requests of its own, and by fixes received by the API itself.
+     * The passive listener is registered the first time the cache is used and lives as long as the
+     * app process. A cached fix may come from any provider.
+     */
+    static class LocationCache {
+
+        private static Location cachedLocation;
+        private static LocationListener passiveListener;
+
+        /** Offer a new fix to the cache, which keeps it if it is newer than the cached one. */
+        static synchronized void offer(Location location) {
+            if (location == null) return;
+            if (cachedLocation == null || location.getElapsedRealtimeNanos() > cachedLocation.getElapsedRealtimeNanos()) {
+                cachedLocation = location;
+            }
+        }
+
+        /**
+         * Get the cached fix if it is at most {@code maxAgeMs} old and, if {@code minAccuracy} is
+         * greater than `0`, its accuracy radius is at most {@code minAccuracy} meters. Otherwise
+         * returns `null`.
+         */
+        @SuppressLint("MissingPermission")
+        static synchronized Location get(Context context, long maxAgeMs, float minAccuracy) {
+            if (passiveListener == null) {
+                LocationManager manager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+
+                // Seed the cache with the last known fixes of the system.
+                for (String provider : manager.getProviders(true)) {
+                    offer(manager.getLastKnownLocation(provider));
+                }
+
+                passiveListener = new LocationListener() {
+                    @Override
+                    public void onLocationChanged(Location location) {
+                        offer(location);
+                    }
+
+                    @Override
+                    public void onStatusChanged(String changedProvider, int status, Bundle extras) {
+                        // Do nothing.
+                    }
+
+                    @Override
+                    public void onProviderEnabled(String changedProvider) {
+                        // Do nothing.
+                    }
+
+                    @Override
+                    public void onProviderDisabled(String changedProvider) {
+                        // Do nothing.
+                    }
+                };
+                manager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0, passiveListener,
+                        Looper.getMainLooper());
+            }
+
+            if (cachedLocation == null) return null;
+
+            long ageMs = (SystemClock.elapsedRealtimeNanos() - cachedLocation.getElapsedRealtimeNanos()) / 1000000;
+            if (ageMs > maxAgeMs) return null;
+            if (minAccuracy > 0 && (!cachedLocation.hasAccuracy() || cachedLocation.getAccuracy() > minAccuracy)) return null;
+            return cachedLocation;
+        }
+    }
+
+    /**
+     * A client of the {@link LocationService} that receives fixes on its output socket.
+     */
+    static class Subscriber {
+        final String outputSocketAddress;
+        /** The providers the subscriber receives fixes from, which is only changed by the service. */
+        final Set<String> providers = new LinkedHashSet<>();
+        /** The minimum time in milliseconds between fixes delivered to the subscriber. */
+        final long interval;
+        /** The minimum distance in meters between fixes delivered to the subscriber. */
+        final float distance;
+        /** The time in milliseconds after which the subscriber is finished, or `0` for no limit. */
+        final long duration;
+        /** The number of fixes after which the subscriber is finished, or `0` for no limit. */
+        final int count;
+        /** The maximum time in milliseconds fixes are batched before being written, or `0` for no batching. */
+        final long batchDelay;
+
+        LocationService service;
+        private LocalSocket outputSocket;
+        PrintWriter writer;
+        private Location lastLocation;
+        private int delivered;
+        private final List<Location> pending = new ArrayList<>();
+
+        Subscriber(Intent intent) {
+            this(intent, LocationService.DEFAULT_INTERVAL, LocationService.DEFAULT_DISTANCE, LocationService.DEFAULT_DURATION);
+            providers.add(intent.getStringExtra("provider"));
+        }
+
+        Subscriber(Intent intent, long defaultInterval, float defaultDistance, long defaultDuration) {
+            outputSocketAddress = intent.getStringExtra("socket_output");
+            interval = Math.max(0, intent.getLongExtra("interval", defaultInterval));
+            distance = Math.max(0, intent.getFloatExtra("distance", defaultDistance));
+            duration = Math.max(0, intent.getLongExtra("duration", defaultDuration));
+            count = Math.max(0, intent.getIntExtra("count", 0));
+            batchDelay = Math.max(0, intent.getLongExtra("batch-delay", 0));
+        }
+
+        void open(LocationService service) throws IOException {
+            this.service = service;
+            outputSocket = new LocalSocket();
+            outputSocket.connect(ResultReturner.getApiLocalSocketAddress(
+                    ResultReturner.context, "output", outputSocketAddress));
+            writer = new PrintWriter(outputSocket.getOutputStream());
+        }
+
+        void close() {
+            flushPending();
+            closeOutput();
+        }
+
+        void closeOutput() {
+            try {
+                if (writer != null)
+                    writer.close();
+                if (outputSocket != null)
+                    outputSocket.close();
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to close subscriber output socket", e);
+            }
+            writer = null;
+            outputSocket = null;
+        }
+
+        /**
+         * Deliver the fixes that satisfy the interval and distance of the subscriber, either directly
+         * or by adding them to the pending batch. Returns `false` if the subscriber is finished or its
+         * output socket has been closed.
+         */
+        boolean onLocationsChanged(List<Location> locations) {
+            for (Location location : locations) {
+                if (lastLocation != null) {
+                    long elapsedMs = (location.getElapsedRealtimeNanos() - lastLocation.getElapsedRealtimeNanos()) / 1000000;
+                    // Allow fixes to arrive slightly early, as the provider does not guarantee exact intervals.
+                    if (elapsedMs < interval - interval / 10 || location.distanceTo(lastLocation) < distance) {
+                        continue;
+                    }
+                }
+                lastLocation = location;
+
+                if (batchDelay > 0) {
+                    pending.add(location);
+                } else {
+                    try {
+                        writeRecord(location);
+                    } catch (IOException e) {
+                        Logger.logStackTraceWithMessage(LOG_TAG, "Failed to write location", e);
+                        return false;
+                    }
+                    if (writer.checkError()) return false;
+                }
+
+                if (count > 0 && ++delivered >= count) {
+                    flushPending();
+                    return false;
+                }
+            }
+
+            // A batch delivered by the provider is written as is.
+            if (locations.size() > 1 || isBatchDue()) {
+                return flushPending();
+            }
+            return true;
+        }
+
+        /** Whether the oldest pending fix has been waiting for at least `batch-delay`. */
+        boolean isBatchDue() {
+            if (pending.isEmpty()) return false;
+            long ageMs = (SystemClock.elapsedRealtimeNanos() - pending.get(0).getElapsedRealtimeNanos()) / 1000000;
+            return ageMs >= batchDelay;
+        }
+
+        /**
+         * Write the pending batch as a single JSON array line, if not empty. Returns `false` if the
+         * output socket has been closed.
+         */
+        boolean flushPending() {
+            if (pending.isEmpty() || writer == null) return true;
+
+            try {
+                JsonWriter jsonWriter = new JsonWriter(writer);
+                jsonWriter.beginArray();
+                for (Location location : pending) {
+                    locationToJson(location, jsonWriter);
+                }
+                jsonWriter.endArray();
+                jsonWriter.flush();
+                writer.println();
+                writer.flush();
+            } catch (IOException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to write location batch", e);
+                return false;
+            } finally {
+                pending.clear();
+            }
+            return !writer.checkError();
+        }
+
+        /** Write {@code location} as a single NDJSON line. */
+        void writeRecord(Location location) throws IOException {
+            JsonWriter jsonWriter = new JsonWriter(writer);
+            locationToJson(location, jsonWriter);
+            jsonWriter.flush();
+            writer.println();
+            writer.flush();
+        }
+    }
+
+    /**
+     * A {@link LocationService} client that pushes an event when a fix enters or exits one of its
+     * circular geofences, and when it has stayed inside one for the `dwell` time.
+     *
+     * To save power, it only uses the `network` and `passive` providers while all fences are far
+     * away, and adds the `gps` provider while the latest fix is within `gps-margin` meters plus its
+     * accuracy of any fence boundary. A fix only causes a transition if its accuracy radius is not
+     * larger than the fence radius, so that coarse fixes do not flip the state back and forth.
+     *
+     * Events are written to the output socket as NDJSON. If the `script` extra is passed, then a
+     * single line with the ids of the registered fences is written and the socket is closed
+     * immediately, and the script is run in the background with the event name and fence id as
+     * arguments instead, so that the geofence keeps running after the calling command has exited.
+     * The geofence runs until its `duration` ends, if any, or all its fences are removed by their id
+     * with the `ids` extra of the `geofence-stop` request. Fence ids are unique in the service, a
+     * geofence with an id that is already used is rejected.
+     */
+    static class GeofenceSubscriber extends Subscriber {
+
+        static final long DEFAULT_INTERVAL = 30 * 1000;
+        static final float DEFAULT_GPS_MARGIN = 100.f;
+
+        static final String EVENT_ENTER = "enter";
+        static final String EVENT_EXIT = "exit";
+        static final String EVENT_DWELL = "dwell";
+
+        /** The number of the next generated fence id, which is only accessed on the service thread. */
+        private static int nextFenceNumber = 1;
+
+        final List<Fence> fences;
+        /** The time in milliseconds a fix must stay inside a fence for a dwell event, or `0` for none. */
+        final long dwell;
+        final float gpsMargin;
+        final String script;
+
+        private final Set<String> baseProviders = new LinkedHashSet<>();
+        private boolean gpsAvailable;
+        private Location lastLocation;
+
+        GeofenceSubscriber(Intent intent) {
+            super(intent, DEFAULT_INTERVAL, 0, 0);
+            fences = parseFences(intent.getStringExtra("fences"));
+            dwell = Math.max(0, intent.getLongExtra("dwell", 0));
+            gpsMargin = Math.max(0, intent.getFloatExtra("gps-margin", DEFAULT_GPS_MARGIN));
+            script = intent.getStringExtra("script");
+            if (script != null) {
+                String scriptError = PluginUtils.getScriptFileError(script);
+                if (scriptError != null)
+                    throw new IllegalArgumentException(scriptError);
+            }
+        }
+
+        /** Remove the fences with an id in {@code ids} and return how many were removed. */
+        int removeFences(Set<String> ids) {
+            int removed = 0;
+            Iterator<Fence> iterator = fences.iterator();
+            while (iterator.hasNext()) {
+                Fence fence = iterator.next();
+                if (!ids.contains(fence.id)) continue;
+                if (fence.dwellCallback != null) service.getHandler().removeCallbacks(fence.dwellCallback);
+                iterator.remove();
+                removed++;
+            }
+            return removed;
+        }
+
+        /**
+         * Parse fences in the `latitude,longitude,radius[,id]` format separated by `;`. The id
+         * defaults to `fence-N`, with a number that is unique in the process, so that fences of
+         * different clients never share an id. Duplicate ids are rejected.
+         */
+        static List<Fence> parseFences(String value) {
+            if (value == null || value.trim().isEmpty())
+                throw new IllegalArgumentException("No fences passed - expected 'latitude,longitude,radius[,id]' separated by ';'");
+
+            List<Fence> fences = new ArrayList<>();
+            for (String fenceValue : value.split(";")) {
+                if (fenceValue.trim().isEmpty()) continue;
+                String[] parts = fenceValue.split(",", 4);
+                if (parts.length < 3)
+                    throw new IllegalArgumentException("Invalid fence '" + fenceValue + "' - expected 'latitude,longitude,radius[,id]'");
+                try {
+                    double latitude = Double.parseDouble(parts[0].trim());
+                    double longitude = Double.parseDouble(parts[1].trim());
+                    float radius = Float.parseFloat(parts[2].trim());
+                    if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180 || !(radius > 0))
+                        throw new IllegalArgumentException("Invalid fence '" + fenceValue + "' - coordinates out of range or radius not positive");
+                    String id = parts.length > 3 ? parts[3].trim() : "fence-" + nextFenceNumber++;
+                    if (id.isEmpty())
+                        throw new IllegalArgumentException("Invalid fence '" + fenceValue + "' - empty id");
+                    for (Fence fence : fences) {
+                        if (fence.id.equals(id))
+                            throw new IllegalArgumentException("Duplicate fence id '" + id + "'");
+                    }
+                    fences.add(new Fence(id, latitude, longitude, radius));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid fence '" + fenceValue + "' - " + e.getMessage());
+                }
+            }
+            if (fences.isEmpty())
+                throw new IllegalArgumentException("No fences passed - expected 'latitude,longitude,radius[,id]' separated by ';'");
+            return fences;
+        }
+
+        @Override
+        void open(LocationService service) throws IOException {
+            super.open(service);
+
+            List<String> allProviders = service.getLocationManager().getAllProviders();
+            for (String provider : new String[]{LocationManager.NETWORK_PROVIDER, LocationManager.PASSIVE_PROVIDER}) {
+                if (allProviders.contains(provider)) baseProviders.add(provider);
+            }
+            gpsAvailable = allProviders.contains(LocationManager.GPS_PROVIDER);
+            providers.addAll(baseProviders);
+            // Without any coarse provider, the fences can only be tracked with gps.
+            if (baseProviders.isEmpty() && gpsAvailable) providers.add(LocationManager.GPS_PROVIDER);
+
+            if (script != null) {
+                JsonWriter jsonWriter = new JsonWriter(writer);
+                jsonWriter.beginObject();
+                jsonWriter.name("fences").value(fences.size());
+                jsonWriter.name("ids").beginArray();
+                for (Fence fence : fences) {
+                    jsonWriter.value(fence.id);
+                }
+                jsonWriter.endArray();
+                jsonWriter.name("script").value(script);
+                jsonWriter.endObject();
+                jsonWriter.flush();
+                writer.println();
+                writer.flush();
+                closeOutput();
+            }
+        }
+
+        @Override
+        void close() {
+            for (Fence fence : fences) {
+                if (fence.dwellCallback != null) service.getHandler().removeCallbacks(fence.dwellCallback);
+            }
+            super.close();
+        }
+
+        @Override
+        boolean onLocationsChanged(List<Location> locations) {
+            for (Location location : locations) {
+                // The passive provider also delivers the fixes of the other registrations.
+                if (lastLocation != null && location.getElapsedRealtimeNanos() <= lastLocation.getElapsedRealtimeNanos())
+                    continue;
+                lastLocation = location;
+
+                float accuracy = location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE;
+                for (Fence fence : fences) {
+                    if (accuracy > fence.radius) continue;
+
+                    boolean inside = fence.distanceTo(location) <= fence.radius;
+                    Boolean wasInside = fence.inside;
+                    fence.inside = inside;
+                    // Starting outside of a fence is not an exit.
+                    if ((wasInside == null && !inside) || (wasInside != null && wasInside == inside)) continue;
+
+                    if (!onFenceChanged(fence, location)) return false;
+                }
+            }
+
+            updateProviders();
+            return true;
+        }
+
+        private boolean onFenceChanged(final Fence fence, Location location) {
+            if (fence.dwellCallback != null) {
+                service.getHandler().removeCallbacks(fence.dwellCallback);
+                fence.dwellCallback = null;
+            }
+
+            if (fence.inside && dwell > 0) {
+                fence.dwellCallback = () -> {
+                    fence.dwellCallback = null;
+                    if (!writeEvent(EVENT_DWELL, fence, lastLocation)) {
+                        service.removeSubscriber(this);
+                    }
+                };
+                service.getHandler().postDelayed(fence.dwellCallback, dwell);
+            }
+
+            return writeEvent(fence.inside ? EVENT_ENTER : EVENT_EXIT, fence, location);
+        }
+
+        /** Use gps only while the latest fix is close to the boundary of any fence. */
+        private void updateProviders() {
+            if (!gpsAvailable || baseProviders.isEmpty() || lastLocation == null) return;
+
+            float accuracy = lastLocation.hasAccuracy() ? lastLocation.getAccuracy() : 0;
+            boolean nearBoundary = false;
+            for (Fence fence : fences) {
+                if (Math.abs(fence.distanceTo(lastLocation) - fence.radius) <= gpsMargin + accuracy) {
+                    nearBoundary = true;
+                    break;
+                }
+            }
+
+            Set<String> newProviders = new LinkedHashSet<>(baseProviders);
+            if (nearBoundary) newProviders.add(LocationManager.GPS_PROVIDER);
+            service.setSubscriberProviders(this, newProviders);
+        }
+
+        /**
+         * Write the event to the output socket, or run the script for it. Returns `false` if the
+         * output socket has been closed.
+         */
+        private boolean writeEvent(String event, Fence fence, Location location) {
+            Logger.logDebug(LOG_TAG, "Geofence \"" + fence.id + "\" " + event);
+
+            if (script != null) {
+                runScript(event, fence);
+                return true;
+            }
+
+            try {
+                JsonWriter jsonWriter = new JsonWriter(writer);
+                jsonWriter.beginObject();
+                jsonWriter.name("event").value(event);
+                jsonWriter.name("id").value(fence.id);
+                jsonWriter.name("latitude").value(location.getLatitude());
+                jsonWriter.name("longitude").value(location.getLongitude());
+                jsonWriter.name("accuracy").value(location.getAccuracy());
+                jsonWriter.name("distance").value(fence.distanceTo(location));
+                jsonWriter.name("provider").value(location.getProvider());
+                jsonWriter.endObject();
+                jsonWriter.flush();
+                writer.println();
+                writer.flush();
+            } catch (IOException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to write geofence event", e);
+                return false;
+            }
+            return !writer.checkError();
+        }
+
+        private void runScript(String event, Fence fence) {
+            try {
+                PluginUtils.runScript(service, script, new String[]{event, fence.id});
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to run geofence script \"" + script + "\"", e);
+            }
+        }
+
+        static class Fence {
+            final String id;
+            final double latitude;
+            final double longitude;
+            final float radius;
+
+            /** Whether the latest accurate enough fix was inside, or `null` if unknown. */
+            Boolean inside;
+            Runnable dwellCallback;
+            private final float[] results = new float[1];
+
+            Fence(String id, double latitude, double longitude, float radius) {
+                this.id = id;
+                this.latitude = latitude;
+                this.longitude = longitude;
+                this.radius = radius;
+            }
+
+            float distanceTo(Location location) {
+                Location.distanceBetween(latitude, longitude, location.getLatitude(), location.getLongitude(), results);
+                return results[0];
+            }
+        }
+    }
+
+    /**
+     * A {@link LocationService} client that streams {@link GnssStatus} satellite status and
+     * {@link GnssMeasurementsEvent} raw measurements as NDJSON, one line per event with an array of
+     * satellites or measurements.
+     *
+     * Since events may arrive at `1Hz` or more with dozens of satellites each, the lines are written
+     * by hand into a single reused {@link StringBuilder} instead of with a {@link JsonWriter}, and
+     * satellites below `min-cn0` are skipped. Events can be decimated by time with the `interval`
+     * extra and by count with the `decimate` extra, which keeps only every Nth event. The `gnss-types`
+     * extra selects the comma separated `status` and `measurements` streams, defaulting to both.
+     *
+     * The subscriber keeps a `gps` registration with the service, since the GNSS engine only runs
+     * while fixes are requested, but the fixes themselves are not written.
+     *
+     * - https://developer.android.com/reference/android/location/GnssStatus
+     * - https://developer.android.com/reference/android/location/GnssMeasurementsEvent
+     */
+    static class GnssSubscriber extends Subscriber {
+
+        static final long DEFAULT_INTERVAL = 1000;
+
+        static final String TYPE_STATUS = "status";
+        static final String TYPE_MEASUREMENTS = "measurements";
+
+        final boolean status;
+        final boolean measurements;
+        /** Keep only every Nth event of each type, `1` keeps all of them. */
+        final int decimate;
+        /** The minimum carrier-to-noise density in dB-Hz of a written satellite, or `0` for all. */
+        final float minCn0;
+
+        private final StringBuilder line = new StringBuilder(4096);
+        private GnssStatus.Callback statusCallback;
+        private GnssMeasurementsEvent.Callback measurementsCallback;
+        private int statusCount;
+        private int measurementsCount;
+        private long lastStatusMs;
+        private long lastMeasurementsMs;
+
+        GnssSubscriber(Intent intent) {
+            super(intent, DEFAULT_INTERVAL, 0, LocationService.DEFAULT_DURATION);
+            providers.add(LocationManager.GPS_PROVIDER);
+
+            String types = intent.getStringExtra("gnss-types");
+            if (types == null) {
+                status = true;
+                measurements = true;
+            } else {
+                List<String> typeList = new ArrayList<>();
+                for (String type : types.split(",")) typeList.add(type.trim());
+                status = typeList.contains(TYPE_STATUS);
+                measurements = typeList.contains(TYPE_MEASUREMENTS);
+            }
+            decimate = Math.max(1, intent.getIntExtra("decimate", 1));
+            minCn0 = Math.max(0, intent.getFloatExtra("min-cn0", 0));
+        }
+
+        @SuppressLint("MissingPermission")
+        @Override
+        void open(LocationService service) throws IOException {
+            super.open(service);
+
+            LocationManager manager = service.getLocationManager();
+            if (status) {
+                statusCallback = new GnssStatus.Callback() {
+                    @Override
+                    public void onSatelliteStatusChanged(GnssStatus gnssStatus) {
+                        onStatus(gnssStatus);
+                    }
+                };
+                manager.registerGnssStatusCallback(statusCallback, service.getHandler());
+            }
+            if (measurements) {
+                measurementsCallback = new GnssMeasurementsEvent.Callback() {
+                    @Override
+                    public void onGnssMeasurementsReceived(GnssMeasurementsEvent event) {
+                        onMeasurements(event);
+                    }
+
+                    @Override
+                    public void onStatusChanged(int measurementsStatus) {
+                        if (measurementsStatus != STATUS_READY) {
+                            Logger.logError(LOG_TAG, "GNSS measurements not available, status " + measurementsStatus);
+                        }
+                    }
+                };
+                manager.registerGnssMeasurementsCallback(measurementsCallback, service.getHandler());
+            }
+        }
+
+        @Override
+        void close() {
+            if (service != null) {
+                LocationManager manager = service.getLocationManager();
+                if (statusCallback != null) manager.unregisterGnssStatusCallback(statusCallback);
+                if (measurementsCallback != null) manager.unregisterGnssMeasurementsCallback(measurementsCallback);
+            }
+            statusCallback = null;
+            measurementsCallback = null;
+            super.close();
+        }
+
+        @Override
+        boolean onLocationsChanged(List<Location> locations) {
+            return true;
+        }
+
+        private void onStatus(GnssStatus gnssStatus) {
+            if (statusCallback == null || statusCount++ % decimate != 0) return;
+            long nowMs = SystemClock.elapsedRealtime();
+            if (nowMs - lastStatusMs < interval - interval / 10) return;
+            lastStatusMs = nowMs;
+
+            StringBuilder line = this.line;
+            line.setLength(0);
+            line.append("{\"type\":\"").append(TYPE_STATUS).append("\",\"elapsed_realtime_ms\":").append(nowMs);
+            line.append(",\"satellites\":[");
+            boolean first = true;
+            for (int i = 0; i < gnssStatus.getSatelliteCount(); i++) {
+                float cn0 = gnssStatus.getCn0DbHz(i);
+                if (cn0 < minCn0) continue;
+
+                if (!first) line.append(',');
+                first = false;
+                line.append("{\"svid\":").append(gnssStatus.getSvid(i));
+                line.append(",\"constellation\":\"").append(getConstellationName(gnssStatus.getConstellationType(i))).append('"');
+                appendNumber(line, "cn0", cn0);
+                appendNumber(line, "azimuth", gnssStatus.getAzimuthDegrees(i));
+                appendNumber(line, "elevation", gnssStatus.getElevationDegrees(i));
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && gnssStatus.hasCarrierFrequencyHz(i)) {
+                    appendNumber(line, "carrier_frequency_hz", gnssStatus.getCarrierFrequencyHz(i));
+                }
+                line.append(",\"used_in_fix\":").append(gnssStatus.usedInFix(i));
+                line.append(",\"has_almanac\":").append(gnssStatus.hasAlmanacData(i));
+                line.append(",\"has_ephemeris\":").append(gnssStatus.hasEphemerisData(i));
+                line.append('}');
+            }
+            line.append("]}");
+            writeLine();
+        }
+
+        private void onMeasurements(GnssMeasurementsEvent event) {
+            if (measurementsCallback == null || measurementsCount++ % decimate != 0) return;
+            long nowMs = SystemClock.elapsedRealtime();
+            if (nowMs - lastMeasurementsMs < interval - interval / 10) return;
+            lastMeasurementsMs = nowMs;
+
+            StringBuilder line = this.line;
+            line.setLength(0);
+            line.append("{\"type\":\"").append(TYPE_MEASUREMENTS).append("\",\"elapsed_realtime_ms\":").append(nowMs);
+            line.append(",\"time_nanos\":").append(event.getClock().getTimeNanos());
+            if (event.getClock().hasFullBiasNanos()) {
+                line.append(",\"full_bias_nanos\":").append(event.getClock().getFullBiasNanos());
+            }
+            line.append(",\"measurements\":[");
+            boolean first = true;
+            for (GnssMeasurement measurement : event.getMeasurements()) {
+                double cn0 = measurement.getCn0DbHz();
+                if (cn0 < minCn0) continue;
+
+                if (!first) line.append(',');
+                first = false;
+                line.append("{\"svid\":").append(measurement.getSvid());
+                line.append(",\"constellation\":\"").append(getConstellationName(measurement.getConstellationType())).append('"');
+                appendNumber(line, "cn0", cn0);
+                appendNumber(line, "pseudorange_rate", measurement.getPseudorangeRateMetersPerSecond());
+                appendNumber(line, "pseudorange_rate_uncertainty", measurement.getPseudorangeRateUncertaintyMetersPerSecond());
+                line.append(",\"received_sv_time_nanos\":").append(measurement.getReceivedSvTimeNanos());
+                line.append(",\"received_sv_time_uncertainty_nanos\":").append(measurement.getReceivedSvTimeUncertaintyNanos());
+                appendNumber(line, "time_offset_nanos", measurement.getTimeOffsetNanos());
+                line.append(",\"state\":").append(measurement.getState());
+                line.append(",\"multipath_indicator\":").append(measurement.getMultipathIndicator());
+                if (measurement.hasCarrierFrequencyHz()) {
+                    appendNumber(line, "carrier_frequency_hz", measurement.getCarrierFrequencyHz());
+                }
+                line.append('}');
+            }
+            line.append("]}");
+            writeLine();
+        }
+
+        /** Append a `,"name":value` member, writing `null` for values that are not valid JSON numbers. */
+        private static void appendNumber(StringBuilder line, String name, double value) {
+            line.append(",\"").append(name).append("\":");
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                line.append("null");
+            } else {
+                line.append(value);
+            }
+        }
+
+        /** Append a float member without widening it to double, which would add noise digits. */
+        private static void appendNumber(StringBuilder line, String name, float value) {
+            line.append(",\"").append(name).append("\":");
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                line.append("null");
+            } else {
+                line.append(value);
+            }
+        }
+
+        private void writeLine() {
+            if (writer == null) return;
+            writer.append(line).println();
+            writer.flush();
+            if (writer.checkError()) {
+                service.removeSubscriber(this);
+            }
+        }
+
+        static String getConstellationName(int constellationType) {
+            switch (constellationType) {
+                case GnssStatus.CONSTELLATION_GPS:
+                    return "GPS";
+                case GnssStatus.CONSTELLATION_SBAS:
+                    return "SBAS";
+                case GnssStatus.CONSTELLATION_GLONASS:
+                    return "GLONASS";
+                case GnssStatus.CONSTELLATION_QZSS:
+                    return "QZSS";
+                case GnssStatus.CONSTELLATION_BEIDOU:
+                    return "BEIDOU";
+                case GnssStatus.CONSTELLATION_GALILEO:
+                    return "GALILEO";
+                default:
+                    // CONSTELLATION_IRNSS was only added in API 29
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && constellationType == GnssStatus.CONSTELLATION_IRNSS)
+                        return "IRNSS";
+                    return "UNKNOWN";
+            }
+        }
+    }
 }
@@ -4,14 +4,24 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.media.MediaPlayer;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 
 import com.termux.api.util.ResultReturner;
 import com.termux.shared.logger.Logger;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * API that enables playback of standard audio formats such as:
@@ -58,33 +68,80 @@ public class MediaPlayerAPI {
 
     /**
      * All media functionality exists in this background service
+     *
+     * The `play` command plays the `file` extra, or the playlist of the `files` extra, and the
+     * `queue` command adds them to the end of the playlist. Tracks are prepared asynchronously, so
+     * that the main thread is not blocked by large or network files, and the track after the
+     * current one is prepared while it plays and set with
+     * {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}, so that playback continues without a gap.
+     * The result of a command that starts a track is returned once it is prepared.
+     *
+     * The `info` command returns the status as JSON if the `json` extra is `true`, and the
+     * `subscribe` command keeps the output open and writes the status as a JSON object on a line
+     * every `interval` milliseconds (default `1000`), and on every `start`, `pause`, `resume`,
+     * `seek`, `completion`, `stop` and `error` event, until the client closes it.
+     *
+     * - https://developer.android.com/reference/android/media/MediaPlayer#setNextMediaPlayer(android.media.MediaPlayer)
      */
-    public static class MediaPlayerService extends Service implements MediaPlayer.OnErrorListener,
-            MediaPlayer.OnCompletionListener {
+    public static class MediaPlayerService extends Service {
 
         protected static MediaPlayer mediaPlayer;
 
+        // the prepared or preparing player for the next track in the playlist
+        protected static MediaPlayer nextPlayer;
+        protected static boolean nextPrepared;
+
         // do we currently have a track to play?
         protected static boolean hasTrack;
 
+        // has the current track finished preparing?
+        protected static boolean isPrepared;
+
         protected static String trackName;
 
+        protected static final List<File> playlist = new ArrayList<>();
+        protected static int playlistIndex;
+
+        // the command waiting for the current track to be prepared to return its result
+        private static Context pendingContext;
+        private static Intent pendingIntent;
+
+        private static final PlayerListener playerListener = new PlayerListener();
+
+        // the context used by the player callbacks to prepare the next tracks
+        private static Context applicationContext;
+
+        private static final Set<Subscriber> subscribers = new HashSet<>();
+        private static final Handler handler = new Handler(Looper.getMainLooper());
+
         private static final String LOG_TAG = "MediaPlayerService";
 
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            applicationContext = getApplicationContext();
+        }
+
         /**
          * Returns our MediaPlayer instance and ensures it has all the necessary callbacks
          */
         protected MediaPlayer getMediaPlayer() {
             if (mediaPlayer == null) {
-                mediaPlayer = new MediaPlayer();
-                mediaPlayer.setOnCompletionListener(this);
-                mediaPlayer.setOnErrorListener(this);
-                mediaPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-                mediaPlayer.setVolume(1.0f, 1.0f);
+                mediaPlayer = createMediaPlayer(getApplicationContext());
             }
             return mediaPlayer;
         }
 
+        protected static MediaPlayer createMediaPlayer(Context context) {
+            MediaPlayer player = new MediaPlayer();
+            player.setOnPreparedListener(playerListener);
+            player.setOnCompletionListener(playerListener);
+            player.setOnErrorListener(playerListener);
+            player.setWakeMode(context, PowerManager.PARTIAL_WAKE_LOCK);
+            player.setVolume(1.0f, 1.0f);
+            return player;
+        }
+
         /**
          * What we received from TermuxApiReceiver but now within this service
          */
@@ -95,10 +152,11 @@ public class MediaPlayerAPI {
             MediaPlayer player = getMediaPlayer();
             Context context = getApplicationContext();
 
-            // get command handler and display result
+            // get command handler and display result, unless it is returned once a track is prepared
             MediaCommandHandler handler = getMediaCommandHandler(command);
             MediaCommandResult result = handler.handle(player, context, intent);
-            postMediaCommandResult(context, intent, result);
+            if (result != null)
+                postMediaCommandResult(context, intent, result);
 
             return Service.START_NOT_STICKY;
         }
@@ -114,11 +172,18 @@ public class MediaPlayerAPI {
          * Releases MediaPlayer resources
          */
         protected static void cleanUpMediaPlayer() {
+            releaseNextPlayer();
             if (mediaPlayer != null) {
-                mediaPlayer.stop();
+                if (isPrepared)
+                    mediaPlayer.stop();
                 mediaPlayer.release();
                 mediaPlayer = null;
             }
+            hasTrack = false;
+            isPrepared = false;
+            playlist.clear();
+            postPendingResult(null, "Playback stopped");
+            publishEvent("stop");
         }
 
         @Override
@@ -126,16 +191,159 @@ public class MediaPlayerAPI {
             return null;
         }
 
-        @Override
-        public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
-            Logger.logVerbose(LOG_TAG, "onError: what: " + what + ", extra: "  + extra);
-            return false;
+        /**
+         * Load the playlist track at {@code index} into the current player and start it once it is
+         * prepared. The result for {@code intent}, if not `null`, is returned at that point.
+         *
+         * @return The error if the track could not be loaded, otherwise `null`.
+         */
+        protected static String loadTrack(Context context, int index, Intent intent) {
+            releaseNextPlayer();
+            MediaPlayer player = mediaPlayer;
+            player.reset();
+            isPrepared = false;
+            hasTrack = false;
+            playlistIndex = index;
+
+            File mediaFile = playlist.get(index);
+            try {
+                player.setDataSource(mediaFile.getCanonicalPath());
+            } catch (IOException | IllegalArgumentException e) {
+                player.reset();
+                return e.getMessage();
+            }
+
+            hasTrack = true;
+            trackName = mediaFile.getName();
+            postPendingResult(null, "Playback interrupted");
+            if (intent != null) {
+                pendingContext = context;
+                pendingIntent = intent;
+            }
+            player.prepareAsync();
+            return null;
         }
 
-        @Override
-        public void onCompletion(MediaPlayer mediaPlayer) {
-            hasTrack = false;
-            mediaPlayer.reset();
+        /** Prepare the track after the current one, if there is one, to be played without a gap. */
+        protected static void prepareNextTrack(Context context) {
+            if (nextPlayer != null || playlistIndex + 1 >= playlist.size()) return;
+
+            MediaPlayer player = createMediaPlayer(context);
+            try {
+                player.setDataSource(playlist.get(playlistIndex + 1).getCanonicalPath());
+            } catch (IOException | IllegalArgumentException e) {
+                // The track will be loaded again when it is reached, and the error reported then.
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to set next track", e);
+                player.release();
+                return;
+            }
+            nextPlayer = player;
+            nextPrepared = false;
+            player.prepareAsync();
+        }
+
+        protected static void releaseNextPlayer() {
+            if (nextPlayer != null) {
+                if (mediaPlayer != null && isPrepared)
+                    mediaPlayer.setNextMediaPlayer(null);
+                nextPlayer.release();
+                nextPlayer = null;
+                nextPrepared = false;
+            }
+        }
+
+        /**
+         * Make the prepared next player the current one. It has already been started if the
+         * current track completed, otherwise it is started here.
+         */
+        protected static void advanceToNextPlayer(Context context) {
+            MediaPlayer previous = mediaPlayer;
+            previous.setNextMediaPlayer(null);
+            previous.release();
+
+            mediaPlayer = nextPlayer;
+            nextPlayer = null;
+            nextPrepared = false;
+            playlistIndex++;
+            trackName = playlist.get(playlistIndex).getName();
+            hasTrack = true;
+            isPrepared = true;
+            if (!mediaPlayer.isPlaying())
+                mediaPlayer.start();
+            publishEvent("start");
+            prepareNextTrack(context);
+        }
+
+        /** Return the result of the command waiting for the current track, if there is one. */
+        protected static void postPendingResult(String message, String error) {
+            if (pendingIntent == null) return;
+
+            MediaCommandResult result = new MediaCommandResult();
+            if (message != null)
+                result.message = message;
+            result.error = error;
+            postMediaCommandResult(pendingContext, pendingIntent, result);
+            pendingContext = null;
+            pendingIntent = null;
+        }
+
+        /**
+         * Callbacks of all players, which are called on the main thread, like the commands.
+         */
+        static class PlayerListener implements MediaPlayer.OnPreparedListener,
+                MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener {
+
+            @Override
+            public void onPrepared(MediaPlayer player) {
+                if (player == mediaPlayer) {
+                    isPrepared = true;
+                    player.start();
+                    postPendingResult("Now Playing: " + trackName, null);
+                    publishEvent("start");
+                    prepareNextTrack(applicationContext);
+                } else if (player == nextPlayer) {
+                    nextPrepared = true;
+                    if (isPrepared)
+                        mediaPlayer.setNextMediaPlayer(player);
+                }
+            }
+
+            @Override
+            public boolean onError(MediaPlayer player, int what, int extra) {
+                Logger.logVerbose(LOG_TAG, "onError: what: " + what + ", extra: "  + extra);
+
+                if (player == nextPlayer) {
+                    // The track will be loaded again when it is reached, and the error reported then.
+                    releaseNextPlayer();
+                    return true;
+                }
+                if (player == mediaPlayer && !isPrepared) {
+                    hasTrack = false;
+                    player.reset();
+                    postPendingResult(null, "Failed to prepare " + trackName + ": error " + what + ", " + extra);
+                    publishEvent("error");
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void onCompletion(MediaPlayer player) {
+                if (player != mediaPlayer) return;
+
+                publishEvent("completion");
+                if (nextPlayer != null && nextPrepared) {
+                    advanceToNextPlayer(applicationContext);
+                } else if (hasTrack && playlistIndex + 1 < playlist.size()) {
+                    String error = loadTrack(applicationContext, playlistIndex + 1, null);
+                    if (error != null)
+                        Logger.logError(LOG_TAG, "Failed to load next track: " + error);
+                } else {
+                    hasTrack = false;
+                    isPrepared = false;
+                    player.reset();
+                }
+            }
         }
 
         protected static MediaCommandHandler getMediaCommandHandler(final String command) {
@@ -144,12 +352,22 @@ public class MediaPlayerAPI {
                     return infoHandler;
                 case "play":
                     return playHandler;
+                case "queue":
+                    return queueHandler;
                 case "pause":
                     return pauseHandler;
                 case "resume":
                     return resumeHandler;
                 case "stop":
                     return stopHandler;
+                case "next":
+                    return nextHandler;
+                case "prev":
+                    return prevHandler;
+                case "seek":
+                    return seekHandler;
+                case "subscribe":
+                    return subscribeHandler;
                 default:
                     return (player, context, intent) -> {
                         MediaCommandResult result = new MediaCommandResult();
@@ -175,6 +393,108 @@ public class MediaPlayerAPI {
             });
         }
 
+        /**
+         * Get the status of the current track, with the {@code event} that caused it, if not `null`.
+         * Must be called on the main thread, like the commands.
+         */
+        protected static JSONObject getStatusJson(String event) throws JSONException {
+            JSONObject status = new JSONObject();
+            if (event != null)
+                status.put("event", event);
+
+            if (!hasTrack) {
+                status.put("status", "stopped");
+            } else if (!isPrepared) {
+                status.put("status", "preparing");
+            } else {
+                status.put("status", mediaPlayer.isPlaying() ? "playing" : "paused");
+            }
+            if (hasTrack) {
+                status.put("track", trackName);
+                status.put("file", playlist.get(playlistIndex).getAbsolutePath());
+                if (isPrepared) {
+                    status.put("position", mediaPlayer.getCurrentPosition());
+                    status.put("duration", mediaPlayer.getDuration());
+                }
+            }
+            if (!playlist.isEmpty()) {
+                status.put("index", playlistIndex);
+                status.put("playlistSize", playlist.size());
+            }
+            return status;
+        }
+
+        /** Write the status with {@code event} to all subscribers. */
+        protected static void publishEvent(String event) {
+            if (subscribers.isEmpty()) return;
+            try {
+                String line = getStatusJson(event).toString();
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.offer(line);
+                }
+            } catch (JSONException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Status event json error", e);
+            }
+        }
+
+        /**
+         * A client of the `subscribe` command. The status lines are created on the main thread and
+         * written by the thread of the result, so that a slow client does not block playback. At
+         * most {@link #MAX_PENDING_LINES} lines are kept for a client that does not read them, after
+         * which the oldest are dropped, as only the latest status matters.
+         */
+        static class Subscriber {
+            static final int MAX_PENDING_LINES = 16;
+
+            final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>(MAX_PENDING_LINES);
+            final int interval;
+            volatile boolean closed;
+
+            final Runnable update = new Runnable() {
+                @Override
+                public void run() {
+                    if (closed) {
+                        subscribers.remove(Subscriber.this);
+                        return;
+                    }
+                    try {
+                        offer(getStatusJson(null).toString());
+                    } catch (JSONException e) {
+                        Logger.logStackTraceWithMessage(LOG_TAG, "Status json error", e);
+                    }
+                    handler.postDelayed(this, interval);
+                }
+            };
+
+            Subscriber(int interval) {
+                this.interval = interval;
+            }
+
+            /** Queue {@code line}, dropping the oldest lines if the queue is full. */
+            void offer(String line) {
+                while (!lines.offer(line)) {
+                    lines.poll();
+                }
+            }
+        }
+
+        /**
+         * Get the files passed with the `file` extra or the `files` array extra.
+         */
+        protected static List<File> getMediaFiles(Intent intent) {
+            List<File> files = new ArrayList<>();
+            String file = intent.getStringExtra("file");
+            if (file != null)
+                files.add(new File(file));
+            String[] paths = intent.getStringArrayExtra("files");
+            if (paths != null) {
+                for (String path : paths) {
+                    files.add(new File(path));
+                }
+            }
+            return files;
+        }
+
         /**
          * -----
          * Media Command Handlers
@@ -186,9 +506,22 @@ public class MediaPlayerAPI {
             public MediaCommandResult handle(MediaPlayer player, Context context, Intent intent) {
                 MediaCommandResult result = new MediaCommandResult();
 
-                if (hasTrack) {
-                    String status = player.isPlaying() ? "Playing" : "Paused";
-                    result.message = String.format("Status: %s\nTrack: %s\nCurrent Position: %s", status, trackName, getPlaybackPositionString(player));
+                if (intent.getBooleanExtra("json", false)) {
+                    try {
+                        result.message = getStatusJson(null).toString(2);
+                    } catch (JSONException e) {
+                        Logger.logStackTraceWithMessage(LOG_TAG, "infoHandler json error", e);
+                        result.error = "Failed to create status json";
+                    }
+                } else if (hasTrack) {
+                    if (!isPrepared) {
+                        result.message = String.format("Status: Preparing\nTrack: %s", trackName);
+                    } else {
+                        String status = player.isPlaying() ? "Playing" : "Paused";
+                        result.message = String.format("Status: %s\nTrack: %s\nCurrent Position: %s", status, trackName, getPlaybackPositionString(player));
+                    }
+                    if (playlist.size() > 1)
+                        result.message += String.format("\nPlaylist: %d / %d", playlistIndex + 1, playlist.size());
                 } else {
                     result.message = "No track currently!";
                 }
@@ -201,32 +534,54 @@ public class MediaPlayerAPI {
             public MediaCommandResult handle(MediaPlayer player, Context context, Intent intent) {
                 MediaCommandResult result = new MediaCommandResult();
 
-                File mediaFile;
-                try {
-                    mediaFile = new File(intent.getStringExtra("file"));
-                } catch (NullPointerException e) {
+                List<File> mediaFiles = getMediaFiles(intent);
+                if (mediaFiles.isEmpty()) {
                     result.error = "No file was specified";
                     return result;
                 }
 
-                if (hasTrack) {
+                if (hasTrack && isPrepared) {
                     player.stop();
-                    player.reset();
-                    hasTrack = false;
                 }
+                hasTrack = false;
+                playlist.clear();
+                playlist.addAll(mediaFiles);
 
-                try {
-                    player.setDataSource(mediaFile.getCanonicalPath());
-                    player.prepare();
-                } catch (IOException e) {
-                    result.error = e.getMessage();
+                String error = loadTrack(context, 0, intent);
+                if (error != null) {
+                    result.error = error;
                     return result;
                 }
+                return null;
+            }
+        };
 
-                player.start();
-                hasTrack = true;
-                trackName = mediaFile.getName();
-                result.message = "Now Playing: " + trackName;
+        static MediaCommandHandler queueHandler = new MediaCommandHandler() {
+            @Override
+            public MediaCommandResult handle(MediaPlayer player, Context context, Intent intent) {
+                MediaCommandResult result = new MediaCommandResult();
+
+                List<File> mediaFiles = getMediaFiles(intent);
+                if (mediaFiles.isEmpty()) {
+                    result.error = "No file was specified";
+                    return result;
+                }
+
+                int index = playlist.size();
+                playlist.addAll(mediaFiles);
+
+                if (!hasTrack) {
+                    String error = loadTrack(context, index, intent);
+                    if (error != null) {
+                        result.error = error;
+                        return result;
+                    }
+                    return null;
+                }
+
+                if (isPrepared)
+                    prepareNextTrack(context);
+                result.message = String.format("Queued %d track(s)\nPlaylist: %d / %d", mediaFiles.size(), playlistIndex + 1, playlist.size());
                 return result;
             }
         };
@@ -236,9 +591,12 @@ public class MediaPlayerAPI {
             public MediaCommandResult handle(MediaPlayer player, Context context, Intent intent) {
                 MediaCommandResult result = new MediaCommandResult();
 
-                if (hasTrack) {
+                if (hasTrack && !isPrepared) {
+                    result.message = "Track is still preparing";
+                } else if (hasTrack) {
                     if (player.isPlaying()) {
                         player.pause();
+                        publishEvent("pause");
                         result.message = "Paused playback";
                     } else {
                         result.message = "Playback already paused";
@@ -263,13 +621,16 @@ public class MediaPlayerAPI {
             @Override
             public MediaCommandResult handle(MediaPlayer player, Context context, Intent intent) {
                 MediaCommandResult result = new MediaCommandResult();
-                if (hasTrack) {
+                if (hasTrack && !isPrepared) {
+                    result.message = "Track is still preparing";
+                } else if (hasTrack) {
                     String positionString = String.format("Track: %s\nCurrent Position: %s", trackName, getPlaybackPositionString(player));
 
                     if (player.isPlaying()) {
                         result.message = "Already playing track!\n" + positionString;
                     } else {
                         player.start();
+                        publishEvent("resume");
                         result.message = "Resumed playback\n" + positionString;
                     }
                 } else {
@@ -285,9 +646,15 @@ public class MediaPlayerAPI {
                 MediaCommandResult result = new MediaCommandResult();
 
                 if (hasTrack) {
-                    player.stop();
+                    releaseNextPlayer();
+                    if (isPrepared)
+                        player.stop();
                     player.reset();
                     hasTrack = false;
+                    isPrepared = false;
+                    playlist.clear();
+                    postPendingResult(null, "Playback stopped");
+                    publishEvent("stop");
                     result.message = "Stopped playback\nTrack cleared";
                 } else {
                     result.message = "No track to stop";
@@ -295,6 +662,96 @@ public class MediaPlayerAPI {
                 return result;
             }
         };
+
+        static MediaCommandHandler nextHandler = new MediaCommandHandler() {
+            @Override
+            public MediaCommandResult handle(MediaPlayer player, Context context, Intent intent) {
+                MediaCommandResult result = new MediaCommandResult();
+
+                if (playlist.isEmpty() || playlistIndex + 1 >= playlist.size()) {
+                    result.message = "No next track";
+                    return result;
+                }
+
+                if (nextPlayer != null && nextPrepared && isPrepared) {
+                    advanceToNextPlayer(context);
+                    result.message = "Now Playing: " + trackName;
+                    return result;
+                }
+
+                String error = loadTrack(context, playlistIndex + 1, intent);
+                if (error != null) {
+                    result.error = error;
+                    return result;
+                }
+                return null;
+            }
+        };
+
+        static MediaCommandHandler prevHandler = new MediaCommandHandler() {
+            @Override
+            public MediaCommandResult handle(MediaPlayer player, Context context, Intent intent) {
+                MediaCommandResult result = new MediaCommandResult();
+
+                if (playlist.isEmpty() || playlistIndex == 0) {
+                    result.message = "No previous track";
+                    return result;
+                }
+
+                String error = loadTrack(context, playlistIndex - 1, intent);
+                if (error != null) {
+                    result.error = error;
+                    return result;
+                }
+                return null;
+            }
+        };
+
+        static MediaCommandHandler subscribeHandler = new MediaCommandHandler() {
+            @Override
+            public MediaCommandResult handle(MediaPlayer player, Context context, Intent intent) {
+                final Subscriber subscriber = new Subscriber(Math.max(100, intent.getIntExtra("interval", 1000)));
+                subscribers.add(subscriber);
+                handler.post(subscriber.update);
+
+                ResultReturner.returnData(context, intent, out -> {
+                    try {
+                        while (true) {
+                            out.println(subscriber.lines.take());
+                            out.flush();
+                            // The client closed the output.
+                            if (out.checkError()) break;
+                        }
+                    } finally {
+                        subscriber.closed = true;
+                    }
+                });
+                return null;
+            }
+        };
+
+        static MediaCommandHandler seekHandler = new MediaCommandHandler() {
+            @Override
+            public MediaCommandResult handle(MediaPlayer player, Context context, Intent intent) {
+                MediaCommandResult result = new MediaCommandResult();
+
+                if (!hasTrack) {
+                    result.message = "No track to seek";
+                } else if (!isPrepared) {
+                    result.message = "Track is still preparing";
+                } else if (!intent.hasExtra("position")) {
+                    result.error = "No position was specified";
+                } else {
+                    // The position is in milliseconds.
+                    int position = Math.max(0, Math.min(intent.getIntExtra("position", 0), player.getDuration()));
+                    player.seekTo(position);
+                    publishEvent("seek");
+                    result.message = String.format("Track: %s\nCurrent Position: %s / %s", trackName,
+                            getTimeString(position / 1000), getTimeString(player.getDuration() / 1000));
+                }
+                return result;
+            }
+        };
     }
 
     /**
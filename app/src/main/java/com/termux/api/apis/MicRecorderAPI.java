@@ -3,31 +3,61 @@ package com.termux.api.apis;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 
+import com.termux.api.util.AudioFileUtils;
 import com.termux.api.util.ResultReturner;
 import com.termux.shared.logger.Logger;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static android.media.MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED;
+import static android.media.MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING;
 import static android.media.MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED;
+import static android.media.MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED;
 
 /**
- * API that enables recording to a file via the built-in microphone
+ * API that enables recording to a file via the built-in microphone, or streaming raw PCM from it
+ * with the `stream` command. Multiple recordings can run at the same time with different `session`
+ * extras, see {@link RecordingSession}. The `trigger` command only records while the input level is
+ * above a threshold, see {@link TriggeredRecording}.
  */
 public class MicRecorderAPI {
 
@@ -48,26 +78,20 @@ public class MicRecorderAPI {
     /**
      * All recording functionality exists in this background service
      */
-    public static class MicRecorderService extends Service implements MediaRecorder.OnInfoListener, MediaRecorder.OnErrorListener {
+    public static class MicRecorderService extends Service {
         protected static final int MIN_RECORDING_LIMIT = 1000;
 
         // default max recording duration in seconds
         protected static final int DEFAULT_RECORDING_LIMIT = (1000 * 60 * 15);
 
-        protected static MediaRecorder mediaRecorder;
-
-        // are we currently recording using the microphone?
-        protected static boolean isRecording;
-
-        // file we're recording too
-        protected static File file;
-
 
         private static final String LOG_TAG = "MicRecorderService";
 
-        public void onCreate() {
-            getMediaRecorder(this);
-        }
+        /** The time in milliseconds a stream may take to connect to the client before it is dropped. */
+        protected static final int STREAM_START_TIMEOUT = 10 * 1000;
+
+        /** Handler of the main thread, on which the service state is checked. */
+        private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
 
         public int onStartCommand(Intent intent, int flags, int startId) {
             Logger.logDebug(LOG_TAG, "onStartCommand");
@@ -77,7 +101,9 @@ public class MicRecorderAPI {
             Context context = getApplicationContext();
             RecorderCommandHandler handler = getRecorderCommandHandler(command);
             RecorderCommandResult result = handler.handle(context, intent);
-            postRecordCommandResult(context, intent, result);
+            // Handlers that write their own output return no result.
+            if (result != null)
+                postRecordCommandResult(context, intent, result);
 
             return Service.START_NOT_STICKY;
         }
@@ -90,11 +116,15 @@ public class MicRecorderAPI {
                     return recordHandler;
                 case "quit":
                     return quitHandler;
+                case "stream":
+                    return streamHandler;
+                case "trigger":
+                    return triggerHandler;
                 default:
                     return (context, intent) -> {
                         RecorderCommandResult result = new RecorderCommandResult();
                         result.error = "Unknown command: " + command;
-                        if (!isRecording)
+                        if (isIdle())
                             context.stopService(intent);
                         return result;
                     };
@@ -114,55 +144,27 @@ public class MicRecorderAPI {
             });
         }
 
-        /**
-         * Returns our MediaPlayer instance and ensures it has all the necessary callbacks
-         */
-        protected static void getMediaRecorder(MicRecorderService service) {
-            mediaRecorder = new MediaRecorder();
-            mediaRecorder.setOnErrorListener(service);
-            mediaRecorder.setOnInfoListener(service);
-        }
-
         public void onDestroy() {
             Logger.logDebug(LOG_TAG, "onDestroy");
 
-            cleanupMediaRecorder();
+            RecordingSession.stopAll();
+            PcmStream.stopAll();
         }
 
-        /**
-         * Releases MediaRecorder resources
-         */
-        protected static void cleanupMediaRecorder() {
-            if (isRecording) {
-                mediaRecorder.stop();
-                isRecording = false;
-            }
-            mediaRecorder.reset();
-            mediaRecorder.release();
+        /** Whether there is no recording or stream, so that the service can be stopped. */
+        protected static boolean isIdle() {
+            return RecordingSession.getCount() == 0 && PcmStream.getCount() == 0;
         }
 
-        @Override
-        public IBinder onBind(Intent intent) {
-            return null;
-        }
-
-        @Override
-        public void onError(MediaRecorder mr, int what, int extra) {
-            Logger.logVerbose(LOG_TAG, "onError: what: " + what + ", extra: "  + extra);
-
-            isRecording = false;
-            this.stopSelf();
+        /** Stop the service if there is no recording or stream left. */
+        protected static void stopIfIdle(Context context) {
+            if (isIdle())
+                context.stopService(new Intent(context, MicRecorderService.class));
         }
 
         @Override
-        public void onInfo(MediaRecorder mr, int what, int extra) {
-            Logger.logVerbose(LOG_TAG, "onInfo: what: " + what + ", extra: "  + extra);
-
-            switch (what) {
-                case MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED: // intentional fallthrough
-                case MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
-                    this.stopSelf();
-            }
+        public IBinder onBind(Intent intent) {
+            return null;
         }
 
         protected static String getDefaultRecordingFilename() {
@@ -171,13 +173,35 @@ public class MicRecorderAPI {
             return Environment.getExternalStorageDirectory().getAbsolutePath() + "/TermuxAudioRecording_" + dateFormat.format(date);
         }
 
-        protected static String getRecordingInfoJSONString() {
+        /**
+         * Get the info of the session passed with the `session` extra, or if not passed, the info
+         * of the default session, or any if there is none, with a list of all sessions.
+         */
+        protected static String getRecordingInfoJSONString(Intent intent) {
             String result = "";
-            JSONObject info = new JSONObject();
             try {
-                info.put("isRecording", isRecording);
-                if (isRecording)
-                    info.put("outputFile", file.getAbsolutePath());
+                JSONObject info;
+                if (intent.hasExtra("session")) {
+                    String id = intent.getStringExtra("session");
+                    RecordingSession session = RecordingSession.get(id);
+                    if (session != null) {
+                        info = session.toJson();
+                    } else {
+                        info = new JSONObject();
+                        info.put("id", id);
+                        info.put("isRecording", false);
+                    }
+                } else {
+                    info = new JSONObject();
+                    RecordingSession session = RecordingSession.get(RecordingSession.DEFAULT_ID);
+                    if (session == null)
+                        session = RecordingSession.getAny();
+                    info.put("isRecording", session != null);
+                    if (session != null)
+                        info.put("outputFile", session.getCurrentFile().getAbsolutePath());
+                    info.put("sessions", RecordingSession.getAllJson());
+                    info.put("streams", PcmStream.getCount());
+                }
                 result = info.toString(2);
             } catch (JSONException e) {
                 Logger.logStackTraceWithMessage(LOG_TAG, "infoHandler json error", e);
@@ -196,8 +220,8 @@ public class MicRecorderAPI {
             @Override
             public RecorderCommandResult handle(Context context, Intent intent) {
                 RecorderCommandResult result = new RecorderCommandResult();
-                result.message = getRecordingInfoJSONString();
-                if (!isRecording)
+                result.message = getRecordingInfoJSONString(intent);
+                if (isIdle())
                     context.stopService(intent);
                 return result;
             }
@@ -254,57 +278,163 @@ public class MicRecorderAPI {
                 int srate = intent.getIntExtra("srate", 0);
                 int channels = intent.getIntExtra("channels", 0);
 
-                file = new File(filename);
+                String id = intent.hasExtra("session") ? intent.getStringExtra("session") : RecordingSession.DEFAULT_ID;
+                int segmentDuration = Math.max(0, intent.getIntExtra("segment-duration", 0));
+                if (segmentDuration > 0 && segmentDuration < MIN_RECORDING_LIMIT)
+                    segmentDuration = MIN_RECORDING_LIMIT;
+                long segmentSize = Math.max(0, intent.getIntExtra("segment-size", 0));
+
+                RecordingSession session = new RecordingSession(context, id, new File(filename), source, format,
+                        encoder, bitrate, srate, channels, duration, segmentDuration, segmentSize);
+                File file = session.getCurrentFile();
+                File existingFile = session.getExistingFile();
 
                 Logger.logInfo(LOG_TAG, "MediaRecording file is: " + file.getAbsolutePath());
 
-                if (file.exists()) {
-                    result.error = String.format("File: %s already exists! Please specify a different filename", file.getName());
+                if (existingFile != null) {
+                    result.error = String.format("File: %s already exists! Please specify a different filename", existingFile.getName());
                 } else {
-                    if (isRecording) {
+                    if (RecordingSession.get(id) != null) {
                         result.error = "Recording already in progress!";
                     } else {
                         try {
-                            mediaRecorder.setAudioSource(source);
-                            mediaRecorder.setOutputFormat(format);
-                            mediaRecorder.setAudioEncoder(encoder);
-                            mediaRecorder.setOutputFile(filename);
-                            mediaRecorder.setMaxDuration(duration);
-                            if (bitrate > 0)
-                                mediaRecorder.setAudioEncodingBitRate(bitrate);
-                            if (srate > 0)
-                                mediaRecorder.setAudioSamplingRate(srate);
-                            if (channels > 0)
-                                mediaRecorder.setAudioChannels(channels);
-                            mediaRecorder.prepare();
-                            mediaRecorder.start();
-                            isRecording = true;
+                            session.start();
                             result.message = String.format("Recording started: %s \nMax Duration: %s",
                                                            file.getAbsolutePath(),
                                                            duration <= 0 ?
                                                            "unlimited" :
                                                            MediaPlayerAPI.getTimeString(duration /
                                                                                         1000));
+                            if (!RecordingSession.DEFAULT_ID.equals(id))
+                                result.message += "\nSession: " + id;
+                            if (segmentDuration > 0)
+                                result.message += "\nSegment Duration: " + MediaPlayerAPI.getTimeString(segmentDuration / 1000);
+                            if (segmentSize > 0)
+                                result.message += "\nSegment Size: " + segmentSize + " bytes";
 
-                        } catch (IllegalStateException | IOException e) {
+                        } catch (RuntimeException | IOException e) {
                             Logger.logStackTraceWithMessage(LOG_TAG, "MediaRecorder error", e);
                             result.error = "Recording error: " + e.getMessage();
                         }
                     }
                 }
-                if (!isRecording)
+                if (isIdle())
                     context.stopService(intent);
                 return result;
             }
         };
 
+        static RecorderCommandHandler streamHandler = new RecorderCommandHandler() {
+            @Override
+            public RecorderCommandResult handle(Context context, Intent intent) {
+                final PcmStream stream;
+                try {
+                    stream = new PcmStream(intent);
+                } catch (IllegalArgumentException e) {
+                    RecorderCommandResult result = new RecorderCommandResult();
+                    result.error = "Stream error: " + e.getMessage();
+                    if (isIdle())
+                        context.stopService(intent);
+                    return result;
+                }
+                return startStream(context, intent, stream);
+            }
+        };
+
+        static RecorderCommandHandler triggerHandler = new RecorderCommandHandler() {
+            @Override
+            public RecorderCommandResult handle(Context context, Intent intent) {
+                final TriggeredRecording recording;
+                try {
+                    recording = new TriggeredRecording(intent, getDefaultRecordingFilename());
+                } catch (IllegalArgumentException e) {
+                    RecorderCommandResult result = new RecorderCommandResult();
+                    result.error = "Trigger error: " + e.getMessage();
+                    if (isIdle())
+                        context.stopService(intent);
+                    return result;
+                }
+                return startStream(context, intent, recording);
+            }
+        };
+
+        /**
+         * Run {@code stream} on the output of the command, or on a pipe passed to the client if the
+         * `fd` extra is `true`. Returns `null` as the output is written by the stream.
+         *
+         * The stream is registered here on the main thread, so that commands that arrive before it
+         * starts running on the result thread do not consider the service idle. It is dropped again
+         * if the result thread never runs it, like when the client does not connect.
+         */
+        protected static RecorderCommandResult startStream(Context context, Intent intent, final PcmStream stream) {
+            final Context serviceContext = context;
+            final Intent serviceIntent = intent;
+            // The stream finishes on its own thread, but sessions are only accessed on the main thread.
+            stream.onFinished = () -> MAIN_HANDLER.post(() -> {
+                if (isIdle())
+                    serviceContext.stopService(serviceIntent);
+            });
+            stream.register();
+            MAIN_HANDLER.postDelayed(() -> {
+                if (stream.unregisterIfNotStarted() && isIdle())
+                    serviceContext.stopService(serviceIntent);
+            }, STREAM_START_TIMEOUT);
+
+            if (intent.getBooleanExtra("fd", false)) {
+                // Pass the read end of a pipe to the client, and stream into it from a separate
+                // thread, as the output socket is closed once the fd is sent.
+                ResultReturner.returnData(context, intent, new ResultReturner.WithAncillaryFd() {
+                    @Override
+                    public void writeResult(PrintWriter out) throws Exception {
+                        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+                        new Thread(() -> {
+                            try (FileOutputStream output = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                                stream.run(output.getChannel());
+                            } catch (IOException e) {
+                                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to close stream pipe", e);
+                            }
+                        }, "PcmStream").start();
+                        sendFd(out, pipe[0].detachFd());
+                    }
+                });
+            } else {
+                ResultReturner.returnData(context, intent, new ResultReturner.BinaryOutput() {
+                    @Override
+                    public void writeResult(OutputStream out) throws Exception {
+                        stream.run(Channels.newChannel(out));
+                    }
+                });
+            }
+            return null;
+        }
+
         static RecorderCommandHandler quitHandler = new RecorderCommandHandler() {
             @Override
             public RecorderCommandResult handle(Context context, Intent intent) {
                 RecorderCommandResult result = new RecorderCommandResult();
 
-                if (isRecording) {
-                    result.message = "Recording finished: " + file.getAbsolutePath();
+                // Only stop the session passed with the `session` extra, otherwise stop everything.
+                if (intent.hasExtra("session")) {
+                    RecordingSession session = RecordingSession.get(intent.getStringExtra("session"));
+                    if (session != null) {
+                        File file = session.getCurrentFile();
+                        session.stop();
+                        result.message = "Recording finished: " + file.getAbsolutePath();
+                    } else {
+                        result.message = "No recording to stop";
+                    }
+                    stopIfIdle(context);
+                    return result;
+                }
+
+                List<RecordingSession> sessions = RecordingSession.stopAll();
+                int streams = PcmStream.stopAll();
+                if (!sessions.isEmpty()) {
+                    result.message = "Recording finished: " + sessions.get(0).getCurrentFile().getAbsolutePath();
+                    for (int i = 1; i < sessions.size(); i++)
+                        result.message += "\nRecording finished: " + sessions.get(i).getCurrentFile().getAbsolutePath();
+                } else if (streams > 0) {
+                    result.message = "Streams stopped: " + streams;
                 } else {
                     result.message = "No recording to stop";
                 }
@@ -314,6 +444,674 @@ public class MicRecorderAPI {
         };
     }
 
+    /**
+     * A recording with a {@link MediaRecorder}, identified by the `session` extra, so that
+     * multiple recordings can be controlled and queried separately.
+     *
+     * If `segment-duration` milliseconds or `segment-size` bytes are passed, the recording is split
+     * into segments, saved with a sequence number before the extension of `file`, like
+     * `recording-0001.m4a`, so that finished segments can be processed while recording continues.
+     * On Android `>= 8` size based segments are switched without a gap with
+     * {@link MediaRecorder#setNextOutputFile(File)}, otherwise the recorder is restarted for the
+     * next segment. The `limit` then applies to the whole recording.
+     *
+     * Sessions are only accessed on the main thread, on which the service commands and the
+     * {@link MediaRecorder} callbacks run.
+     */
+    static class RecordingSession implements MediaRecorder.OnInfoListener, MediaRecorder.OnErrorListener {
+        static final String DEFAULT_ID = "default";
+
+        private static final Map<String, RecordingSession> SESSIONS = new LinkedHashMap<>();
+        private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+        final Context context;
+        final String id;
+        final File file;
+        final int source;
+        final int format;
+        final int encoder;
+        final int bitrate;
+        final int srate;
+        final int channels;
+        /** The max duration in milliseconds of the whole recording, or `<= 0` for no limit. */
+        final int limit;
+        final int segmentDuration;
+        final long segmentSize;
+        final long startTime = System.currentTimeMillis();
+
+        private MediaRecorder mediaRecorder;
+        private boolean isRecording;
+        private int segmentIndex;
+        private File currentFile;
+        private File nextFile;
+        private final List<File> segments = new ArrayList<>();
+        private final Runnable rotateCallback = this::rotate;
+        private final Runnable limitCallback = this::stop;
+
+        RecordingSession(Context context, String id, File file, int source, int format, int encoder,
+                         int bitrate, int srate, int channels, int limit, int segmentDuration, long segmentSize) {
+            this.context = context;
+            this.id = id;
+            this.file = file;
+            this.source = source;
+            this.format = format;
+            this.encoder = encoder;
+            this.bitrate = bitrate;
+            this.srate = srate;
+            this.channels = channels;
+            this.limit = limit;
+            this.segmentDuration = segmentDuration;
+            this.segmentSize = segmentSize;
+            this.currentFile = getSegmentFile(0);
+        }
+
+        static RecordingSession get(String id) {
+            return SESSIONS.get(id);
+        }
+
+        static RecordingSession getAny() {
+            return SESSIONS.isEmpty() ? null : SESSIONS.values().iterator().next();
+        }
+
+        static int getCount() {
+            return SESSIONS.size();
+        }
+
+        static JSONArray getAllJson() throws JSONException {
+            JSONArray sessions = new JSONArray();
+            for (RecordingSession session : SESSIONS.values()) {
+                sessions.put(session.toJson());
+            }
+            return sessions;
+        }
+
+        /** Stop all sessions and return them. */
+        static List<RecordingSession> stopAll() {
+            List<RecordingSession> sessions = new ArrayList<>(SESSIONS.values());
+            for (RecordingSession session : sessions) {
+                session.stop();
+            }
+            return sessions;
+        }
+
+        boolean isSegmented() {
+            return segmentDuration > 0 || segmentSize > 0;
+        }
+
+        File getCurrentFile() {
+            return currentFile;
+        }
+
+        /** Get the file of segment {@code index}, which is `file` itself if not segmented. */
+        File getSegmentFile(int index) {
+            if (!isSegmented()) return file;
+            return AudioFileUtils.getNumberedFile(file, index + 1, "");
+        }
+
+        /**
+         * Get an existing file that the recording would overwrite, which for segmented recordings
+         * is any segment of `file`, so that later segments never overwrite files either.
+         */
+        File getExistingFile() {
+            if (!isSegmented()) return file.exists() ? file : null;
+            return AudioFileUtils.getExistingNumberedFile(file, "");
+        }
+
+        void start() throws IOException {
+            mediaRecorder = createMediaRecorder(currentFile);
+            try {
+                mediaRecorder.start();
+            } catch (RuntimeException e) {
+                // Release the prepared recorder, so that the microphone is not held.
+                mediaRecorder.release();
+                mediaRecorder = null;
+                throw e;
+            }
+            isRecording = true;
+            SESSIONS.put(id, this);
+
+            if (isSegmented() && limit > 0)
+                HANDLER.postDelayed(limitCallback, limit);
+            if (segmentDuration > 0)
+                HANDLER.postDelayed(rotateCallback, segmentDuration);
+        }
+
+        private MediaRecorder createMediaRecorder(File outputFile) throws IOException {
+            MediaRecorder recorder = new MediaRecorder();
+            recorder.setOnErrorListener(this);
+            recorder.setOnInfoListener(this);
+            try {
+                recorder.setAudioSource(source);
+                recorder.setOutputFormat(format);
+                recorder.setAudioEncoder(encoder);
+                recorder.setOutputFile(outputFile.getAbsolutePath());
+                // The limit of segmented recordings is not per file.
+                if (!isSegmented())
+                    recorder.setMaxDuration(limit);
+                if (segmentSize > 0)
+                    recorder.setMaxFileSize(segmentSize);
+                if (bitrate > 0)
+                    recorder.setAudioEncodingBitRate(bitrate);
+                if (srate > 0)
+                    recorder.setAudioSamplingRate(srate);
+                if (channels > 0)
+                    recorder.setAudioChannels(channels);
+                recorder.prepare();
+            } catch (IOException | RuntimeException e) {
+                recorder.release();
+                throw e;
+            }
+            return recorder;
+        }
+
+        /** Finish the current segment and restart the recorder for the next one. */
+        private void rotate() {
+            if (!isRecording) return;
+            HANDLER.removeCallbacks(rotateCallback);
+
+            releaseMediaRecorder();
+            segmentIndex++;
+            currentFile = getSegmentFile(segmentIndex);
+            if (currentFile.exists()) {
+                Logger.logError(LOG_TAG, "Stopping recording session \"" + id + "\", segment already exists: " + currentFile.getAbsolutePath());
+                stop();
+                return;
+            }
+            try {
+                mediaRecorder = createMediaRecorder(currentFile);
+                mediaRecorder.start();
+            } catch (IOException | RuntimeException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to start next segment", e);
+                mediaRecorder = null;
+                stop();
+                return;
+            }
+            Logger.logInfo(LOG_TAG, "Recording session \"" + id + "\" segment: " + currentFile.getAbsolutePath());
+
+            if (segmentDuration > 0)
+                HANDLER.postDelayed(rotateCallback, segmentDuration);
+        }
+
+        void stop() {
+            HANDLER.removeCallbacks(rotateCallback);
+            HANDLER.removeCallbacks(limitCallback);
+            if (isRecording) {
+                releaseMediaRecorder();
+                isRecording = false;
+            }
+            if (SESSIONS.get(id) == this) {
+                SESSIONS.remove(id);
+                MicRecorderService.stopIfIdle(context);
+            }
+        }
+
+        private void releaseMediaRecorder() {
+            if (mediaRecorder == null) return;
+            try {
+                mediaRecorder.stop();
+            } catch (RuntimeException e) {
+                // Thrown if no data was recorded.
+                Logger.logStackTraceWithMessage(LOG_TAG, "MediaRecorder stop error", e);
+            }
+            mediaRecorder.reset();
+            mediaRecorder.release();
+            mediaRecorder = null;
+            segments.add(currentFile);
+        }
+
+        @Override
+        public void onError(MediaRecorder mr, int what, int extra) {
+            Logger.logVerbose(LOG_TAG, "onError: what: " + what + ", extra: "  + extra);
+
+            stop();
+        }
+
+        @Override
+        public void onInfo(MediaRecorder mr, int what, int extra) {
+            Logger.logVerbose(LOG_TAG, "onInfo: what: " + what + ", extra: "  + extra);
+
+            switch (what) {
+                case MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING:
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && segmentSize > 0) {
+                        nextFile = getSegmentFile(segmentIndex + 1);
+                        if (nextFile.exists()) {
+                            // Recording stops when the max size is reached instead of overwriting it.
+                            Logger.logError(LOG_TAG, "Next segment already exists: " + nextFile.getAbsolutePath());
+                            nextFile = null;
+                            break;
+                        }
+                        try {
+                            mr.setNextOutputFile(nextFile);
+                        } catch (IOException | IllegalStateException e) {
+                            // The recorder will be restarted when the max size is reached instead.
+                            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to set next output file", e);
+                            nextFile = null;
+                        }
+                    }
+                    break;
+                case MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+                    if (nextFile != null) {
+                        segments.add(currentFile);
+                        segmentIndex++;
+                        currentFile = nextFile;
+                        nextFile = null;
+                        Logger.logInfo(LOG_TAG, "Recording session \"" + id + "\" segment: " + currentFile.getAbsolutePath());
+                    }
+                    break;
+                case MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                    if (segmentSize > 0) {
+                        rotate();
+                        break;
+                    }
+                    // Fall through to stop.
+                case MEDIA_RECORDER_INFO_MAX_DURATION_REACHED:
+                    stop();
+            }
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject info = new JSONObject();
+            info.put("id", id);
+            info.put("isRecording", isRecording);
+            info.put("outputFile", currentFile.getAbsolutePath());
+            info.put("startTime", startTime);
+            info.put("elapsedMs", System.currentTimeMillis() - startTime);
+            if (isSegmented()) {
+                info.put("segment", segmentIndex + 1);
+                JSONArray finishedSegments = new JSONArray();
+                for (File segment : segments) {
+                    finishedSegments.put(segment.getAbsolutePath());
+                }
+                info.put("finishedSegments", finishedSegments);
+            }
+            return info;
+        }
+    }
+
+    /**
+     * Stream of raw PCM from an {@link AudioRecord}, as 16-bit signed integer or 32-bit float samples
+     * in native byte order, interleaved if there are multiple channels.
+     *
+     * Samples are read into a single direct {@link ByteBuffer} that is written to the output as is,
+     * so nothing is allocated per buffer. A channel of a pipe fd writes it without copying.
+     *
+     * - https://developer.android.com/reference/android/media/AudioRecord
+     */
+    static class PcmStream {
+        static final int DEFAULT_SAMPLE_RATE = 44100;
+        /** The default buffer duration in milliseconds, which is the latency of the stream. */
+        static final int DEFAULT_BUFFER_MS = 20;
+
+        private static final Set<PcmStream> STREAMS = new HashSet<>();
+
+        final int source;
+        final int sampleRate;
+        final int channelMask;
+        final int encoding;
+        /** The size in bytes of the buffer written at once. */
+        final int bufferSize;
+        /** The size in bytes of the {@link AudioRecord} internal buffer. */
+        final int internalBufferSize;
+        /** The time in milliseconds after which the stream ends, or `0` for no limit. */
+        final int limit;
+
+        Runnable onFinished;
+        private volatile boolean running = true;
+        /** Whether {@link #run(WritableByteChannel)} was called, guarded by {@link #STREAMS}. */
+        private boolean started;
+
+        PcmStream(Intent intent) {
+            source = intent.getIntExtra("source", MediaRecorder.AudioSource.MIC);
+            sampleRate = intent.getIntExtra("srate", DEFAULT_SAMPLE_RATE);
+            int channels = intent.getIntExtra("channels", 1);
+            if (channels != 1 && channels != 2)
+                throw new IllegalArgumentException("Unsupported channel count " + channels + " - only 1 and 2 supported");
+            channelMask = channels == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+
+            String encodingName = intent.hasExtra("encoding") ? intent.getStringExtra("encoding") : "pcm16";
+            switch (encodingName.toLowerCase()) {
+                case "pcm16":
+                    encoding = AudioFormat.ENCODING_PCM_16BIT;
+                    break;
+                case "float":
+                    encoding = AudioFormat.ENCODING_PCM_FLOAT;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported encoding '" + encodingName + "' - only 'pcm16' and 'float' supported");
+            }
+
+            int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelMask, encoding);
+            if (minBufferSize <= 0)
+                throw new IllegalArgumentException("Unsupported sample rate " + sampleRate + " for " + channels + " channels and " + encodingName);
+
+            int frameSize = channels * (encoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+            int requestedSize = intent.getIntExtra("buffer-size", sampleRate * DEFAULT_BUFFER_MS / 1000 * frameSize);
+            // Only write whole frames.
+            bufferSize = Math.max(frameSize, requestedSize - requestedSize % frameSize);
+            // The internal buffer must hold a few writes, so that a slow reader does not drop samples.
+            internalBufferSize = Math.max(minBufferSize, bufferSize * 4);
+
+            limit = Math.max(0, intent.getIntExtra("limit", 0));
+        }
+
+        /** Add the stream to the running streams before it is run, so that the service stays started. */
+        void register() {
+            synchronized (STREAMS) {
+                STREAMS.add(this);
+            }
+        }
+
+        /**
+         * Remove the stream from the running streams if it has not been run yet, so that it is not
+         * run anymore. Returns whether it was removed.
+         */
+        boolean unregisterIfNotStarted() {
+            synchronized (STREAMS) {
+                if (started) return false;
+                running = false;
+                return STREAMS.remove(this);
+            }
+        }
+
+        /**
+         * Record and write to {@code channel} until stopped, the limit is reached or the channel is
+         * closed. Returns immediately if the stream was dropped with {@link #unregisterIfNotStarted()}.
+         */
+        void run(WritableByteChannel channel) {
+            synchronized (STREAMS) {
+                if (!STREAMS.contains(this)) return;
+                started = true;
+            }
+
+            AudioRecord record = null;
+            try {
+                record = new AudioRecord(source, sampleRate, channelMask, encoding, internalBufferSize);
+                if (record.getState() != AudioRecord.STATE_INITIALIZED)
+                    throw new IOException("Failed to initialize AudioRecord");
+                record.startRecording();
+                Logger.logInfo(LOG_TAG, "PCM stream started at " + sampleRate + "Hz with " + bufferSize + " byte buffers");
+
+                long endTime = limit > 0 ? SystemClock.elapsedRealtime() + limit : Long.MAX_VALUE;
+                process(record, channel, endTime);
+            } catch (IOException e) {
+                // Also thrown when the client closes the output.
+                Logger.logDebug(LOG_TAG, "PCM stream ended: " + e.getMessage());
+            } catch (RuntimeException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "PCM stream error", e);
+            } finally {
+                if (record != null) {
+                    if (record.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING)
+                        record.stop();
+                    record.release();
+                }
+                synchronized (STREAMS) {
+                    STREAMS.remove(this);
+                }
+                Logger.logInfo(LOG_TAG, "PCM stream stopped");
+                if (onFinished != null)
+                    onFinished.run();
+            }
+        }
+
+        /** Write the recorded PCM to {@code channel} until stopped or {@code endTime} is reached. */
+        protected void process(AudioRecord record, WritableByteChannel channel, long endTime) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+            while (running && SystemClock.elapsedRealtime() < endTime) {
+                buffer.clear();
+                int read = record.read(buffer, bufferSize);
+                if (read < 0)
+                    throw new IOException("AudioRecord read error " + read);
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+
+        boolean isRunning() {
+            return running;
+        }
+
+        static int getCount() {
+            synchronized (STREAMS) {
+                return STREAMS.size();
+            }
+        }
+
+        /** Stop all streams and return how many were running. */
+        static int stopAll() {
+            synchronized (STREAMS) {
+                for (PcmStream stream : STREAMS) {
+                    stream.running = false;
+                }
+                return STREAMS.size();
+            }
+        }
+    }
+
+    /**
+     * Recording that is only kept while the input level is above a threshold, so that hours of
+     * silence are not stored.
+     *
+     * The RMS level of every buffer is compared with the `threshold` dBFS (default `-40`). Once it is
+     * above, a WAV segment is started with the last `pre-roll` milliseconds (default `500`) of audio
+     * from a ring buffer, so that the start of speech is not cut, and it is kept until the level was
+     * below the threshold for `hangover` milliseconds (default `1000`). Segments are saved with a
+     * sequence number before the extension of `file`, like `recording-0001.wav`, skipping the numbers
+     * of segment files that already exist.
+     *
+     * A JSON object is written on a line to the output for every `start` and `stop` of a segment.
+     *
+     * Only 16-bit PCM is supported, so that the level is computed on a {@code short} array without
+     * any conversion. Segments are written as WAV instead of being encoded, as no encoder has to run
+     * while there is only silence and the short segments can be encoded afterwards if needed.
+     */
+    static class TriggeredRecording extends PcmStream {
+        static final int DEFAULT_THRESHOLD = -40;
+        static final int DEFAULT_PRE_ROLL_MS = 500;
+        static final int DEFAULT_HANGOVER_MS = 1000;
+
+        final File file;
+        final int channels;
+        final double threshold;
+        /** The squared amplitude which the mean of the squared samples must exceed. */
+        final double thresholdEnergy;
+        final int preRollSamples;
+        final int hangoverSamples;
+
+        private final short[] samples;
+        private final short[] ring;
+        private int ringPosition;
+        private int ringCount;
+        private final ByteBuffer fileBuffer;
+        private final ShortBuffer fileSamples;
+
+        private FileChannel segmentChannel;
+        private File segmentFile;
+        private int segmentIndex;
+        private long segmentSamples;
+        private long segmentStartTime;
+        private int silentSamples;
+
+        TriggeredRecording(Intent intent, String defaultFilename) {
+            super(intent);
+            if (encoding != AudioFormat.ENCODING_PCM_16BIT)
+                throw new IllegalArgumentException("Only 'pcm16' encoding supported");
+
+            file = new File(intent.hasExtra("file") ? intent.getStringExtra("file") : defaultFilename + ".wav");
+            channels = channelMask == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1;
+
+            threshold = intent.getIntExtra("threshold", DEFAULT_THRESHOLD);
+            if (threshold > 0 || threshold < -100)
+                throw new IllegalArgumentException("Threshold must be in dBFS, between -100 and 0");
+            double amplitude = Math.pow(10, threshold / 20) * Short.MAX_VALUE;
+            thresholdEnergy = amplitude * amplitude;
+
+            preRollSamples = toSamples(Math.max(0, intent.getIntExtra("pre-roll", DEFAULT_PRE_ROLL_MS)));
+            hangoverSamples = toSamples(Math.max(0, intent.getIntExtra("hangover", DEFAULT_HANGOVER_MS)));
+
+            samples = new short[bufferSize / 2];
+            ring = new short[preRollSamples];
+            fileBuffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+            fileSamples = fileBuffer.asShortBuffer();
+        }
+
+        private int toSamples(int ms) {
+            return (int) ((long) sampleRate * ms / 1000) * channels;
+        }
+
+        @Override
+        protected void process(AudioRecord record, WritableByteChannel channel, long endTime) throws IOException {
+            Logger.logInfo(LOG_TAG, "Triggered recording started at " + threshold + "dBFS for " + file.getAbsolutePath());
+            try {
+                while (isRunning() && SystemClock.elapsedRealtime() < endTime) {
+                    int read = record.read(samples, 0, samples.length);
+                    if (read < 0)
+                        throw new IOException("AudioRecord read error " + read);
+                    if (read == 0) continue;
+
+                    long energy = 0;
+                    for (int i = 0; i < read; i++) {
+                        int sample = samples[i];
+                        energy += sample * sample;
+                    }
+                    boolean active = energy > thresholdEnergy * read;
+
+                    if (segmentChannel == null) {
+                        if (active) {
+                            startSegment(channel, energy, read);
+                            writeSamples(samples, 0, read);
+                        } else {
+                            addToRing(read);
+                        }
+                    } else {
+                        writeSamples(samples, 0, read);
+                        silentSamples = active ? 0 : silentSamples + read;
+                        if (silentSamples >= hangoverSamples)
+                            stopSegment(channel);
+                    }
+                }
+            } finally {
+                if (segmentChannel != null) {
+                    try {
+                        stopSegment(channel);
+                    } catch (IOException e) {
+                        // The output may have been closed by the client.
+                        if (segmentChannel != null)
+                            closeSegment();
+                    }
+                }
+            }
+        }
+
+        private void addToRing(int count) {
+            if (ring.length == 0) return;
+            int offset = 0;
+            if (count > ring.length) {
+                offset = count - ring.length;
+                count = ring.length;
+            }
+            int first = Math.min(count, ring.length - ringPosition);
+            System.arraycopy(samples, offset, ring, ringPosition, first);
+            System.arraycopy(samples, offset + first, ring, 0, count - first);
+            ringPosition = (ringPosition + count) % ring.length;
+            ringCount = Math.min(ring.length, ringCount + count);
+        }
+
+        private void startSegment(WritableByteChannel channel, long energy, int count) throws IOException {
+            // Skip the segments of earlier recordings with the same file instead of overwriting them.
+            do {
+                segmentIndex++;
+                segmentFile = getSegmentFile(segmentIndex);
+            } while (segmentFile.exists());
+            segmentChannel = new RandomAccessFile(segmentFile, "rw").getChannel();
+            segmentChannel.position(AudioFileUtils.WAV_HEADER_SIZE);
+            segmentSamples = 0;
+            silentSamples = 0;
+            segmentStartTime = System.currentTimeMillis() - (long) ringCount / channels * 1000 / sampleRate;
+
+            // Write the pre-roll, oldest samples first.
+            int start = ringCount < ring.length ? 0 : ringPosition;
+            int first = Math.min(ringCount, ring.length - start);
+            writeSamples(ring, start, first);
+            writeSamples(ring, 0, ringCount - first);
+            ringPosition = 0;
+            ringCount = 0;
+
+            try {
+                JSONObject event = new JSONObject();
+                event.put("event", "start");
+                event.put("segment", segmentIndex);
+                event.put("file", segmentFile.getAbsolutePath());
+                event.put("time", segmentStartTime);
+                event.put("level", Math.round(10 * Math.log10((double) energy / count / ((double) Short.MAX_VALUE * Short.MAX_VALUE)) * 10) / 10.0);
+                writeEvent(channel, event);
+            } catch (JSONException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Trigger event json error", e);
+            }
+        }
+
+        private void stopSegment(WritableByteChannel channel) throws IOException {
+            File stoppedFile = segmentFile;
+            long duration = segmentSamples / channels * 1000 / sampleRate;
+            closeSegment();
+
+            try {
+                JSONObject event = new JSONObject();
+                event.put("event", "stop");
+                event.put("segment", segmentIndex);
+                event.put("file", stoppedFile.getAbsolutePath());
+                event.put("time", System.currentTimeMillis());
+                event.put("duration", duration);
+                writeEvent(channel, event);
+            } catch (JSONException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Trigger event json error", e);
+            }
+        }
+
+        /** Write the WAV header with the final sizes and close the segment file. */
+        private void closeSegment() throws IOException {
+            try {
+                ByteBuffer header = AudioFileUtils.getWavHeader(sampleRate, channels, AudioFormat.ENCODING_PCM_16BIT,
+                        segmentSamples * 2);
+                segmentChannel.position(0);
+                while (header.hasRemaining()) {
+                    segmentChannel.write(header);
+                }
+            } finally {
+                segmentChannel.close();
+                segmentChannel = null;
+            }
+        }
+
+        private void writeSamples(short[] source, int offset, int count) throws IOException {
+            while (count > 0) {
+                int length = Math.min(count, fileSamples.capacity());
+                fileSamples.clear();
+                fileSamples.put(source, offset, length);
+                fileBuffer.clear();
+                fileBuffer.limit(length * 2);
+                while (fileBuffer.hasRemaining()) {
+                    segmentChannel.write(fileBuffer);
+                }
+                segmentSamples += length;
+                offset += length;
+                count -= length;
+            }
+        }
+
+        private static void writeEvent(WritableByteChannel channel, JSONObject event) throws IOException {
+            ByteBuffer line = ByteBuffer.wrap((event.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+        }
+
+        private File getSegmentFile(int index) {
+            return AudioFileUtils.getNumberedFile(file, index, ".wav");
+        }
+    }
+
     /**
      * Interface for handling recorder commands
      */
@@ -7,12 +7,10 @@ import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 import android.util.JsonWriter;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 import com.termux.api.TermuxApiReceiver;
 import com.termux.api.util.ResultReturner;
 import com.termux.api.util.ResultReturner.ResultJsonWriter;
+import com.termux.api.util.TimestampFormatter;
 import com.termux.shared.logger.Logger;
 
 
@@ -23,16 +21,19 @@ public class NotificationListAPI {
     public static void onReceive(TermuxApiReceiver apiReceiver, final Context context, Intent intent) {
         Logger.logDebug(LOG_TAG, "onReceive");
 
+        // Write `when` as epoch milliseconds instead of a formatted string.
+        final boolean epochMillis = intent.getBooleanExtra("epoch-millis", false);
+
         ResultReturner.returnData(apiReceiver, intent, new ResultJsonWriter() {
             @Override
             public void writeJson(JsonWriter out) throws Exception {
-                listNotifications(context, out);
+                listNotifications(context, out, new TimestampFormatter(epochMillis));
             }
         });
     }
 
 
-    static void listNotifications(Context context, JsonWriter out) throws Exception {
+    static void listNotifications(Context context, JsonWriter out, TimestampFormatter timestampFormatter) throws Exception {
         NotificationService notificationService = NotificationService.get();
         StatusBarNotification[] notifications = notificationService.getActiveNotifications();
 
@@ -46,8 +47,6 @@ public class NotificationListAPI {
             String packageName = "";
             String tag = "";
             String group = "";
-            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            String when = dateFormat.format(new Date(n.getNotification().when));
 
             if (n.getNotification().extras.getCharSequence(Notification.EXTRA_TITLE) != null) {
                 title = n.getNotification().extras.getCharSequence(Notification.EXTRA_TITLE).toString();
@@ -80,7 +79,8 @@ public class NotificationListAPI {
                     .name("packageName").value(packageName)
                     .name("title").value(title)
                     .name("content").value(text)
-                    .name("when").value(when);
+                    .name("when");
+            timestampFormatter.write(out, n.getNotification().when);
             if (lines != null) {
                 out.name("lines").beginArray();
                 for (CharSequence line : lines) {
@@ -1,6 +1,5 @@
 package com.termux.api.apis;
 
-import android.annotation.SuppressLint;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
@@ -13,16 +12,21 @@ import android.provider.Telephony.TextBasedSmsColumns;
 import android.util.JsonWriter;
 
 import com.termux.api.TermuxApiReceiver;
+import com.termux.api.util.ContentChangeTracker;
 import com.termux.api.util.ResultReturner;
 import com.termux.api.util.ResultReturner.ResultJsonWriter;
+import com.termux.api.util.TimestampFormatter;
 import com.termux.shared.logger.Logger;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import static android.provider.BaseColumns._ID;
 import static android.provider.Telephony.TextBasedSmsColumns.*;
 
 import androidx.annotation.Nullable;
@@ -38,6 +42,11 @@ public class SmsInboxAPI {
 
     private static final String[] DISPLAY_NAME_PROJECTION = {PhoneLookup.DISPLAY_NAME};
 
+    /** The columns read by {@link #writeElement}, so that unused columns are not sent over the binder. */
+    private static final String[] MESSAGE_PROJECTION = {_ID, THREAD_ID, ADDRESS, BODY, DATE, TYPE, READ};
+
+    private static final String[] CONVERSATION_PROJECTION = {THREAD_ID};
+
     private static final String LOG_TAG = "SmsInboxAPI";
 
     public static void onReceive(TermuxApiReceiver apiReceiver, final Context context, Intent intent) {
@@ -90,32 +99,62 @@ public class SmsInboxAPI {
 
         final boolean messageReturnNoOrderReverse = intent.getBooleanExtra("message-return-no-order-reverse", false);
 
-        Uri contentURI;
-        if (conversationList) {
-            contentURI = typeToContentURI(TextBasedSmsColumns.MESSAGE_TYPE_ALL);
-        } else {
-            contentURI = typeToContentURI(messageAddress == null ?
-                    messageTypeColumn : TextBasedSmsColumns.MESSAGE_TYPE_ALL);
-        }
+        /*
+           NOTE: If the `since` extra is passed, then only messages with an `_id` greater than it are
+           returned in ascending `_id` order, along with the new `since` value and a `change_token`
+           that should be passed back in the next call. If the `change-token` extra matches the
+           current token, then nothing has changed and the provider is not queried at all. If the
+           limit cut the messages short, then `has_more` is `true` and `change_token` is `null`,
+           so that the next call is not skipped before the remaining messages are returned.
+         */
+        final boolean messageDeltaSync = intent.hasExtra("since");
+        final long messageSince = intent.getLongExtra("since", 0);
+        final String messageChangeToken = intent.getStringExtra("change-token");
+
+        // Write `received` dates as epoch milliseconds instead of formatted strings.
+        final boolean epochMillis = intent.getBooleanExtra("epoch-millis", false);
 
         ResultReturner.returnData(apiReceiver, intent, new ResultJsonWriter() {
             @Override
             public void writeJson(JsonWriter out) throws Exception {
+                // Invalid filter extras are returned as an error instead of failing the call.
+                final MessageFilter messageFilter;
+                try {
+                    messageFilter = MessageFilter.fromIntent(intent);
+                } catch (IllegalArgumentException e) {
+                    out.beginObject().name("API_ERROR").value(e.getMessage()).endObject();
+                    return;
+                }
+
+                Uri contentURI;
                 if (conversationList) {
-                    getConversations(context, out,
+                    contentURI = typeToContentURI(TextBasedSmsColumns.MESSAGE_TYPE_ALL);
+                } else {
+                    contentURI = typeToContentURI(messageAddress == null && messageFilter.types == null ?
+                            messageTypeColumn : TextBasedSmsColumns.MESSAGE_TYPE_ALL);
+                }
+
+                TimestampFormatter timestampFormatter = new TimestampFormatter(epochMillis);
+                if (conversationList) {
+                    getConversations(context, out, timestampFormatter,
                             conversationOffset, conversationLimit,
                             conversationSelection,
                             conversationSortOrder,
                             conversationReturnMultipleMessages,conversationReturnNestedView,
                             conversationReturnNoOrderReverse,
                             messageOffset, messageLimit,
-                            messageSelection,
+                            messageSelection, messageFilter,
                             messageSortOrder,
                             messageReturnNoOrderReverse);
+                } else if (messageDeltaSync) {
+                    getSmsSince(context, out, timestampFormatter, contentURI,
+                            messageSince, messageChangeToken,
+                            messageLimit,
+                            messageSelection, messageAddress, messageFilter);
                 } else {
-                    getAllSms(context, out, contentURI,
+                    getAllSms(context, out, timestampFormatter, contentURI,
                             messageOffset, messageLimit,
-                            messageSelection, messageAddress,
+                            messageSelection, messageAddress, messageFilter,
                             messageSortOrder,
                             messageReturnNoOrderReverse);
                 }
@@ -123,15 +162,14 @@ public class SmsInboxAPI {
         });
     }
 
-    @SuppressLint("SimpleDateFormat")
-    public static void getConversations(Context context, JsonWriter out,
+    public static void getConversations(Context context, JsonWriter out, TimestampFormatter timestampFormatter,
                                         int conversationOffset, int conversationLimit,
                                         String conversationSelection,
                                         String conversationSortOrder,
                                         boolean conversationReturnMultipleMessages, boolean conversationReturnNestedView,
                                         boolean conversationReturnNoOrderReverse,
                                         int messageOffset, int messageLimit,
-                                        String messageSelection,
+                                        String messageSelection, MessageFilter messageFilter,
                                         String messageSortOrder,
                                         boolean messageReturnNoOrderReverse) throws IOException {
         ContentResolver cr = context.getContentResolver();
@@ -143,11 +181,14 @@ public class SmsInboxAPI {
         }
 
         conversationSortOrder = getSortOrder(conversationSortOrder, conversationOffset, conversationLimit);
-        messageSortOrder = getSortOrder(messageSortOrder, messageOffset, messageLimit);
+        // If rows are filtered while iterating, then offset and limit must be applied to matching
+        // rows only, and not by the provider.
+        boolean rowFilter = messageFilter.hasRowFilter();
+        messageSortOrder = rowFilter ? getSortOrder(messageSortOrder, -1, -1) :
+                getSortOrder(messageSortOrder, messageOffset, messageLimit);
 
-        int index;
         try (Cursor conversationCursor = cr.query(Conversations.CONTENT_URI,
-                null, conversationSelection, null , conversationSortOrder)) {
+                CONVERSATION_PROJECTION, conversationSelection, null , conversationSortOrder)) {
             int conversationCount = conversationCursor.getCount();
             if (conversationReturnNoOrderReverse) {
                 conversationCursor.moveToFirst();
@@ -156,6 +197,7 @@ public class SmsInboxAPI {
             }
 
             Map<String, String> nameCache = new HashMap<>();
+            int threadIdIndex = conversationCursor.getColumnIndex(THREAD_ID);
 
             if (conversationReturnNestedView) {
                 out.beginObject();
@@ -163,32 +205,41 @@ public class SmsInboxAPI {
                 out.beginArray();
             }
             for (int i = 0; i < conversationCount; i++) {
-                index = conversationCursor.getColumnIndex(THREAD_ID);
-                if (index < 0) {
+                if (threadIdIndex < 0) {
                     conversationCursor.moveToPrevious();
                     continue;
                 }
 
-                int id = conversationCursor.getInt(index);
+                int id = conversationCursor.getInt(threadIdIndex);
 
                 if (conversationReturnNestedView) {
                     out.name(String.valueOf(id));
                     out.beginArray();
                 }
 
-                String[] messageSelectionArgs = null;
+                List<String> messageSelectionArgs = new ArrayList<>();
                 if (messageSelection == null || messageSelection.isEmpty()) {
                     messageSelection = "";
                 } else {
                     messageSelection += " ";
                 }
+                String threadSelection = messageFilter.appendSelection(
+                        messageSelection + THREAD_ID + " == '" + id +"'", messageSelectionArgs);
 
-                Cursor messageCursor = cr.query(Sms.CONTENT_URI, null,
-                        messageSelection + THREAD_ID + " == '" + id +"'", messageSelectionArgs,
+                Cursor messageCursor = cr.query(Sms.CONTENT_URI, MESSAGE_PROJECTION,
+                        threadSelection, messageSelectionArgs.isEmpty() ? null : messageSelectionArgs.toArray(new String[0]),
                         messageSortOrder);
-
-                int messageCount = messageCursor.getCount();
-                if (messageCount > 0) {
+                MessageColumns columns = new MessageColumns(messageCursor);
+
+                if (rowFilter) {
+                    List<Integer> positions = getMatchingPositions(messageCursor, columns, messageFilter,
+                            messageOffset, conversationReturnMultipleMessages ? messageLimit : 1);
+                    for (int j = 0; j < positions.size(); j++) {
+                        messageCursor.moveToPosition(positions.get(messageReturnNoOrderReverse ? j : positions.size() - 1 - j));
+                        writeElement(messageCursor, columns, out, timestampFormatter, nameCache, context);
+                    }
+                } else if (messageCursor.getCount() > 0) {
+                    int messageCount = messageCursor.getCount();
                     if (conversationReturnMultipleMessages) {
                         if (messageReturnNoOrderReverse) {
                             messageCursor.moveToFirst();
@@ -197,7 +248,7 @@ public class SmsInboxAPI {
                         }
 
                         for (int j = 0; j < messageCount; j++) {
-                            writeElement(messageCursor, out, nameCache, context);
+                            writeElement(messageCursor, columns, out, timestampFormatter, nameCache, context);
 
                             if (messageReturnNoOrderReverse) {
                                 messageCursor.moveToNext();
@@ -207,7 +258,7 @@ public class SmsInboxAPI {
                         }
                     } else {
                         messageCursor.moveToFirst();
-                        writeElement(messageCursor, out, nameCache, context);
+                        writeElement(messageCursor, columns, out, timestampFormatter, nameCache, context);
                     }
                 }
 
@@ -231,28 +282,49 @@ public class SmsInboxAPI {
         }
     }
 
-    @SuppressLint("SimpleDateFormat")
-    private static void writeElement(Cursor c, JsonWriter out, Map<String, String> nameCache, Context context) throws IOException {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    /**
+     * Column indexes of a message cursor queried with {@link #MESSAGE_PROJECTION}. The cursor schema
+     * does not change while iterating, so they are resolved once per cursor instead of per row.
+     */
+    private static class MessageColumns {
+        final int id;
+        final int threadId;
+        final int address;
+        final int body;
+        final int date;
+        final int type;
+        /** May be `-1` if the provider does not have the column. */
+        final int read;
+
+        MessageColumns(Cursor c) {
+            id = c.getColumnIndexOrThrow(_ID);
+            threadId = c.getColumnIndexOrThrow(THREAD_ID);
+            address = c.getColumnIndexOrThrow(ADDRESS);
+            body = c.getColumnIndexOrThrow(BODY);
+            date = c.getColumnIndexOrThrow(DATE);
+            type = c.getColumnIndexOrThrow(TYPE);
+            read = c.getColumnIndex(READ);
+        }
+    }
 
-        int index;
-        int threadID = c.getInt(c.getColumnIndexOrThrow(THREAD_ID));
-        String smsAddress = c.getString(c.getColumnIndexOrThrow(ADDRESS));
-        String smsBody = c.getString(c.getColumnIndexOrThrow(BODY));
-        long smsReceivedDate = c.getLong(c.getColumnIndexOrThrow(DATE));
+    private static void writeElement(Cursor c, MessageColumns columns, JsonWriter out, TimestampFormatter timestampFormatter,
+                                     Map<String, String> nameCache, Context context) throws IOException {
+        int threadID = c.getInt(columns.threadId);
+        String smsAddress = c.getString(columns.address);
+        String smsBody = c.getString(columns.body);
+        long smsReceivedDate = c.getLong(columns.date);
         // long smsSentDate = c.getLong(c.getColumnIndexOrThrow(TextBasedSmsColumns.DATE_SENT));
-        int smsID = c.getInt(c.getColumnIndexOrThrow("_id"));
+        int smsID = c.getInt(columns.id);
 
         String smsSenderName = getContactNameFromNumber(nameCache, context, smsAddress);
-        String messageType = getMessageType(c.getInt(c.getColumnIndexOrThrow(TYPE)));
+        String messageType = getMessageType(c.getInt(columns.type));
 
         out.beginObject();
         out.name("threadid").value(threadID);
         out.name("type").value(messageType);
 
-        index = c.getColumnIndex(READ);
-        if (index >= 0) {
-            out.name("read").value(c.getInt(index) != 0);
+        if (columns.read >= 0) {
+            out.name("read").value(c.getInt(columns.read) != 0);
         }
 
         if (smsSenderName != null) {
@@ -267,7 +339,8 @@ public class SmsInboxAPI {
         // Deprecated: Address can be a name like service provider instead of a number.
         out.name("number").value(smsAddress);
 
-        out.name("received").value(dateFormat.format(new Date(smsReceivedDate)));
+        out.name("received");
+        timestampFormatter.write(out, smsReceivedDate);
         // if (Math.abs(smsReceivedDate - smsSentDate) >= 60000) {
         // out.write(" (sent ");
         // out.write(dateFormat.format(new Date(smsSentDate)));
@@ -280,28 +353,53 @@ public class SmsInboxAPI {
     }
 
 
-    @SuppressLint("SimpleDateFormat")
-    public static void getAllSms(Context context, JsonWriter out,
+    public static void getAllSms(Context context, JsonWriter out, TimestampFormatter timestampFormatter,
                                  Uri contentURI,
                                  int messageOffset, int messageLimit,
                                  String messageSelection, String messageAddress,
+                                 MessageFilter messageFilter,
                                  String messageSortOrder,
                                  boolean messageReturnNoOrderReverse) throws IOException {
         ContentResolver cr = context.getContentResolver();
 
-        String[] messageSelectionArgs = null;
+        List<String> messageSelectionArgs = new ArrayList<>();
         if (messageSelection == null || messageSelection.isEmpty()) {
+            messageSelection = null;
             if (messageAddress != null && !messageAddress.isEmpty()) {
                 messageSelection = ADDRESS + " LIKE ?";
-                messageSelectionArgs = new String[]{messageAddress};
+                messageSelectionArgs.add(messageAddress);
             }
         }
+        messageSelection = messageFilter.appendSelection(messageSelection, messageSelectionArgs);
 
-        messageSortOrder = getSortOrder(messageSortOrder, messageOffset, messageLimit);
+        // If rows are filtered while iterating, then offset and limit must be applied to matching
+        // rows only, and not by the provider.
+        boolean rowFilter = messageFilter.hasRowFilter();
+        if (rowFilter) {
+            messageSortOrder = getSortOrder(messageSortOrder, -1, -1);
+        } else {
+            messageSortOrder = getSortOrder(messageSortOrder, messageOffset, messageLimit);
+        }
 
-        try (Cursor messageCursor = cr.query(contentURI, null,
-                messageSelection, messageSelectionArgs,
+        try (Cursor messageCursor = cr.query(contentURI, MESSAGE_PROJECTION,
+                messageSelection, messageSelectionArgs.isEmpty() ? null : messageSelectionArgs.toArray(new String[0]),
                 messageSortOrder)) {
+            MessageColumns columns = new MessageColumns(messageCursor);
+            Map<String, String> nameCache = new HashMap<>();
+
+            if (rowFilter) {
+                List<Integer> positions = getMatchingPositions(messageCursor, columns, messageFilter,
+                        messageOffset, messageLimit);
+
+                out.beginArray();
+                for (int i = 0; i < positions.size(); i++) {
+                    messageCursor.moveToPosition(positions.get(messageReturnNoOrderReverse ? i : positions.size() - 1 - i));
+                    writeElement(messageCursor, columns, out, timestampFormatter, nameCache, context);
+                }
+                out.endArray();
+                return;
+            }
+
             int messageCount = messageCursor.getCount();
             if (messageReturnNoOrderReverse) {
                 messageCursor.moveToFirst();
@@ -309,12 +407,9 @@ public class SmsInboxAPI {
                 messageCursor.moveToLast();
             }
 
-            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            Map<String, String> nameCache = new HashMap<>();
-
             out.beginArray();
             for (int i = 0; i < messageCount; i++) {
-                writeElement(messageCursor, out, nameCache, context);
+                writeElement(messageCursor, columns, out, timestampFormatter, nameCache, context);
 
                 if (messageReturnNoOrderReverse) {
                     messageCursor.moveToNext();
@@ -326,6 +421,217 @@ public class SmsInboxAPI {
         }
     }
 
+    /**
+     * Get the cursor positions of the rows matching the filters of {@code messageFilter} not pushed
+     * down, after skipping {@code offset} matching rows and up to {@code limit} rows.
+     */
+    private static List<Integer> getMatchingPositions(Cursor messageCursor, MessageColumns columns,
+                                                      MessageFilter messageFilter, int offset, int limit) {
+        List<Integer> positions = new ArrayList<>();
+        int skipped = 0;
+        while ((limit < 0 || positions.size() < limit) && messageCursor.moveToNext()) {
+            if (!messageFilter.matches(messageCursor, columns)) continue;
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            positions.add(messageCursor.getPosition());
+        }
+        return positions;
+    }
+
+    public static void getSmsSince(Context context, JsonWriter out, TimestampFormatter timestampFormatter,
+                                   Uri contentURI,
+                                   long since, String changeToken,
+                                   int messageLimit,
+                                   String messageSelection, String messageAddress,
+                                   MessageFilter messageFilter) throws IOException {
+        // Get token before querying so that changes made during the query invalidate it.
+        String currentChangeToken = ContentChangeTracker.getChangeToken(context, Sms.CONTENT_URI);
+
+        out.beginObject();
+
+        if (currentChangeToken.equals(changeToken)) {
+            out.name("change_token").value(currentChangeToken);
+            out.name("changed").value(false);
+            out.name("since").value(since);
+            out.name("has_more").value(false);
+            out.name("messages").beginArray().endArray();
+            out.endObject();
+            return;
+        }
+
+        ContentResolver cr = context.getContentResolver();
+
+        List<String> selectionArgs = new ArrayList<>();
+        String selection;
+        if (messageSelection != null && !messageSelection.isEmpty()) {
+            selection = "(" + messageSelection + ")";
+        } else if (messageAddress != null && !messageAddress.isEmpty()) {
+            selection = ADDRESS + " LIKE ?";
+            selectionArgs.add(messageAddress);
+        } else {
+            selection = null;
+        }
+        selection = messageFilter.appendSelection(selection, selectionArgs);
+        selection = (selection == null ? "" : selection + " AND ") + _ID + " > ?";
+        selectionArgs.add(String.valueOf(since));
+
+        // Rows filtered while iterating still advance `since`, since they will never match later.
+        boolean rowFilter = messageFilter.hasRowFilter();
+
+        long maxId = since;
+        int count = 0;
+        out.name("messages").beginArray();
+        try (Cursor messageCursor = cr.query(contentURI, MESSAGE_PROJECTION,
+                selection, selectionArgs.toArray(new String[0]),
+                getSortOrder(_ID + " ASC", -1, rowFilter ? -1 : messageLimit))) {
+            MessageColumns columns = new MessageColumns(messageCursor);
+            Map<String, String> nameCache = new HashMap<>();
+
+            while ((messageLimit < 0 || count < messageLimit) && messageCursor.moveToNext()) {
+                maxId = Math.max(maxId, messageCursor.getLong(columns.id));
+                if (rowFilter && !messageFilter.matches(messageCursor, columns)) continue;
+                writeElement(messageCursor, columns, out, timestampFormatter, nameCache, context);
+                count++;
+            }
+        }
+        out.endArray();
+        // The token is only valid once all messages up to it have been returned.
+        boolean hasMore = messageLimit >= 0 && count >= messageLimit;
+        out.name("change_token").value(hasMore ? null : currentChangeToken);
+        out.name("changed").value(true);
+        out.name("since").value(maxId);
+        out.name("has_more").value(hasMore);
+        out.endObject();
+    }
+
+    /**
+     * Structured message filters. Date range, read state, body substring and type set are pushed
+     * down into the provider selection, while the body regex is applied to rows while iterating
+     * the cursor, so that only matching rows are serialized.
+     */
+    static class MessageFilter {
+        /** Only messages with a `date` greater than or equal to this epoch milliseconds, or `-1`. */
+        long dateFrom = -1;
+        /** Only messages with a `date` less than this epoch milliseconds, or `-1`. */
+        long dateTo = -1;
+        /** Only read messages if `true`, unread messages if `false`, or any if `null`. */
+        Boolean read;
+        /** Only messages whose body contains this string, case insensitive for ASCII. */
+        String bodyContains;
+        /** Only messages whose body has a match for this pattern. */
+        Pattern bodyRegex;
+        /** Only messages with one of these `TYPE` values. */
+        int[] types;
+
+        /**
+         * Get the filter from the extras of {@code intent}.
+         *
+         * @throws IllegalArgumentException If an extra is invalid.
+         */
+        static MessageFilter fromIntent(Intent intent) {
+            MessageFilter filter = new MessageFilter();
+            filter.dateFrom = intent.getLongExtra("date-from", -1);
+            filter.dateTo = intent.getLongExtra("date-to", -1);
+
+            String value = intent.getStringExtra("read-state");
+            if (value != null && !value.isEmpty()) {
+                switch (value) {
+                    case "read":
+                        filter.read = true;
+                        break;
+                    case "unread":
+                        filter.read = false;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid 'read-state' extra: '" + value + "'");
+                }
+            }
+
+            value = intent.getStringExtra("body-contains");
+            if (value != null && !value.isEmpty()) {
+                filter.bodyContains = value;
+            }
+
+            value = intent.getStringExtra("body-regex");
+            if (value != null && !value.isEmpty()) {
+                try {
+                    filter.bodyRegex = Pattern.compile(value);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Invalid 'body-regex' extra: " + e.getDescription());
+                }
+            }
+
+            value = intent.getStringExtra("types");
+            if (value != null && !value.isEmpty()) {
+                String[] typeNames = value.split(",");
+                filter.types = new int[typeNames.length];
+                for (int i = 0; i < typeNames.length; i++) {
+                    filter.types[i] = getMessageTypeColumn(typeNames[i].trim());
+                }
+            }
+
+            return filter;
+        }
+
+        boolean hasRowFilter() {
+            return bodyRegex != null;
+        }
+
+        /**
+         * Append the pushed down filters to {@code selection} with `AND`, adding their arguments
+         * to {@code selectionArgs}. Returns `null` if there is no selection.
+         */
+        @Nullable
+        String appendSelection(@Nullable String selection, List<String> selectionArgs) {
+            StringBuilder sb = new StringBuilder();
+            if (selection != null && !selection.isEmpty()) {
+                sb.append("(").append(selection).append(")");
+            }
+
+            if (dateFrom >= 0) {
+                appendAnd(sb).append(DATE).append(" >= ?");
+                selectionArgs.add(String.valueOf(dateFrom));
+            }
+            if (dateTo >= 0) {
+                appendAnd(sb).append(DATE).append(" < ?");
+                selectionArgs.add(String.valueOf(dateTo));
+            }
+            if (read != null) {
+                appendAnd(sb).append(READ).append(read ? " != 0" : " = 0");
+            }
+            if (bodyContains != null) {
+                appendAnd(sb).append(BODY).append(" LIKE ? ESCAPE '\\'");
+                selectionArgs.add("%" + bodyContains.replace("\\", "\\\\")
+                        .replace("%", "\\%").replace("_", "\\_") + "%");
+            }
+            if (types != null) {
+                appendAnd(sb).append(TYPE).append(" IN (");
+                for (int i = 0; i < types.length; i++) {
+                    sb.append(i == 0 ? "" : ",").append(types[i]);
+                }
+                sb.append(")");
+            }
+
+            return sb.length() == 0 ? null : sb.toString();
+        }
+
+        /** Check whether the current row of {@code c} matches the filters not pushed down. */
+        boolean matches(Cursor c, MessageColumns columns) {
+            if (bodyRegex != null) {
+                String body = c.getString(columns.body);
+                return body != null && bodyRegex.matcher(body).find();
+            }
+            return true;
+        }
+
+        private static StringBuilder appendAnd(StringBuilder sb) {
+            if (sb.length() > 0) sb.append(" AND ");
+            return sb;
+        }
+    }
+
     private static String getContactNameFromNumber(Map<String, String> cache, Context context, String number) {
         if (cache.containsKey(number)) {
             return cache.get(number);
@@ -365,6 +671,23 @@ public class SmsInboxAPI {
         }
     }
 
+    private static int getMessageTypeColumn(String type) {
+        switch (type) {
+            case "inbox":
+                return TextBasedSmsColumns.MESSAGE_TYPE_INBOX;
+            case "sent":
+                return TextBasedSmsColumns.MESSAGE_TYPE_SENT;
+            case "draft":
+                return TextBasedSmsColumns.MESSAGE_TYPE_DRAFT;
+            case "failed":
+                return TextBasedSmsColumns.MESSAGE_TYPE_FAILED;
+            case "outbox":
+                return TextBasedSmsColumns.MESSAGE_TYPE_OUTBOX;
+            default:
+                throw new IllegalArgumentException("Invalid message type: '" + type + "'");
+        }
+    }
+
     private static Uri typeToContentURI(int type) {
         switch (type) {
             case TextBasedSmsColumns.MESSAGE_TYPE_SENT:
@@ -1,24 +1,42 @@
 package com.termux.api.apis;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.media.AudioManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.TextToSpeech.Engine;
 import android.speech.tts.TextToSpeech.EngineInfo;
 import android.speech.tts.UtteranceProgressListener;
 import android.util.JsonWriter;
 
+import com.termux.api.util.AudioFileUtils;
 import com.termux.api.util.ResultReturner;
 import com.termux.shared.data.IntentUtils;
 import com.termux.shared.logger.Logger;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -33,14 +51,211 @@ public class TextToSpeechAPI {
         context.startService(new Intent(context, TextToSpeechService.class).putExtras(intent.getExtras()));
     }
 
-    public static class TextToSpeechService extends IntentService {
-        TextToSpeech mTts;
-        final CountDownLatch mTtsLatch = new CountDownLatch(1);
+    /**
+     * Service that speaks the input lines with a {@link TextToSpeech} engine.
+     *
+     * With the `mode` extra `file`, every line is synthesized to a WAV file numbered before the
+     * extension of the `file` extra instead, and with `stream`, the PCM of the lines is written to
+     * the output. Lines are submitted as they are read and every utterance is tracked by its own id,
+     * so that synthesis is pipelined with reading the input.
+     *
+     * Initializing an engine often takes from 500ms to 2s, so engines are kept warm in a pool keyed
+     * by the `engine` and locale extras, and reused by the next requests for them. Requests for the
+     * same engine are spoken one after another. An engine is shut down once it has not been used for
+     * the largest `idle-timeout` milliseconds (default `30000`) requested for it, so that a request
+     * does not shut down the engines of other callers, and the service is stopped once no engine is
+     * left. An `idle-timeout` of `0` shuts down an engine right after the request if no other
+     * request for it asked to keep it.
+     */
+    public static class TextToSpeechService extends Service {
+        static final int DEFAULT_IDLE_TIMEOUT = 30000;
 
         private static final String LOG_TAG = "TextToSpeechService";
 
-        public TextToSpeechService() {
-            super(TextToSpeechService.class.getName());
+        /** The warm engines by {@link #getEngineKey(String, Locale)}, accessed only on the main thread. */
+        final Map<String, TtsEngine> engines = new HashMap<>();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final Runnable idleCheck = this::shutdownIdleEngines;
+        int activeRequests;
+        int lastStartId;
+
+        /**
+         * A {@link TextToSpeech} engine in the pool.
+         */
+        static class TtsEngine {
+            final String key;
+            final CountDownLatch initLatch = new CountDownLatch(1);
+            TextToSpeech tts;
+            volatile boolean initialized;
+            /** The number of requests using or waiting for the engine. */
+            int users;
+            long lastUsedTime;
+            /** The largest idle timeout requested for the engine. */
+            int idleTimeout;
+
+            /** The utterances submitted to the engine and not finished yet, by their unique id. */
+            final Map<String, Utterance> utterances = new ConcurrentHashMap<>();
+            final AtomicInteger nextUtteranceId = new AtomicInteger();
+
+            TtsEngine(String key) {
+                this.key = key;
+            }
+
+            /**
+             * The listener of the engine, which passes the progress of every utterance to the
+             * request that submitted it. It is called on a binder thread.
+             */
+            final UtteranceProgressListener listener = new UtteranceProgressListener() {
+                @Override
+                public void onStart(String utteranceId) {
+                    // Ignore.
+                }
+
+                @Override
+                public void onBeginSynthesis(String utteranceId, int sampleRateInHz, int audioFormat, int channelCount) {
+                    Utterance utterance = utterances.get(utteranceId);
+                    if (utterance != null)
+                        utterance.request.onBeginSynthesis(sampleRateInHz, audioFormat, channelCount);
+                }
+
+                @Override
+                public void onAudioAvailable(String utteranceId, byte[] audio) {
+                    Utterance utterance = utterances.get(utteranceId);
+                    if (utterance != null)
+                        utterance.request.onAudioAvailable(audio);
+                }
+
+                @Override
+                public void onError(String utteranceId) {
+                    onError(utteranceId, TextToSpeech.ERROR);
+                }
+
+                @Override
+                public void onError(String utteranceId, int errorCode) {
+                    Logger.logError(LOG_TAG, "UtteranceProgressListener.onError() called for " + utteranceId + ": " + errorCode);
+                    finish(utteranceId, errorCode);
+                }
+
+                @Override
+                public void onStop(String utteranceId, boolean interrupted) {
+                    finish(utteranceId, TextToSpeech.ERROR);
+                }
+
+                @Override
+                public void onDone(String utteranceId) {
+                    finish(utteranceId, TextToSpeech.SUCCESS);
+                }
+
+                private void finish(String utteranceId, int status) {
+                    Utterance utterance = utterances.remove(utteranceId);
+                    if (utterance != null)
+                        utterance.request.finish(utterance, status);
+                }
+            };
+
+            /** Wait for the engine to be initialized and return whether it succeeded. */
+            boolean awaitInit() throws InterruptedException {
+                if (!initLatch.await(10, TimeUnit.SECONDS)) {
+                    Logger.logError(LOG_TAG, "Timeout waiting for TTS initialization");
+                    return false;
+                }
+                return initialized;
+            }
+        }
+
+        /**
+         * An utterance submitted to an engine, identified by an id that is unique for the engine.
+         */
+        static class Utterance {
+            final String id;
+            /** The number of the input line of the utterance, starting from `1`. */
+            final int index;
+            /** The file the utterance is synthesized to, or `null` if it is spoken. */
+            final File file;
+            final SynthesisRequest request;
+
+            Utterance(String id, int index, File file, SynthesisRequest request) {
+                this.id = id;
+                this.index = index;
+                this.file = file;
+                this.request = request;
+            }
+        }
+
+        /**
+         * The utterances of a request that have not finished yet, and the output they are written to.
+         *
+         * In the `file` mode, a JSON object with the `index`, `file` and `status` of every utterance
+         * is written on a line once it finishes. In the `stream` mode, the PCM of the utterances is
+         * written in order, after a WAV header with unknown sizes if `wav` is `true`.
+         */
+        static class SynthesisRequest {
+            final PrintWriter out;
+            final OutputStream audioOut;
+            final boolean wav;
+            final Set<String> pending = new HashSet<>();
+            boolean headerWritten;
+            boolean audioFailed;
+
+            SynthesisRequest(PrintWriter out, OutputStream audioOut, boolean wav) {
+                this.out = out;
+                this.audioOut = audioOut;
+                this.wav = wav;
+            }
+
+            synchronized void add(Utterance utterance) {
+                pending.add(utterance.id);
+            }
+
+            synchronized void finish(Utterance utterance, int status) {
+                if (!pending.remove(utterance.id)) return;
+
+                if (out != null && utterance.file != null) {
+                    try {
+                        JSONObject result = new JSONObject();
+                        result.put("index", utterance.index);
+                        result.put("file", utterance.file.getAbsolutePath());
+                        result.put("status", status == TextToSpeech.SUCCESS ? "done" : "error");
+                        if (status != TextToSpeech.SUCCESS)
+                            result.put("error", status);
+                        out.println(result.toString());
+                        out.flush();
+                    } catch (JSONException e) {
+                        Logger.logStackTraceWithMessage(LOG_TAG, "Utterance result json error", e);
+                    }
+                }
+                notifyAll();
+            }
+
+            synchronized void awaitAll() throws InterruptedException {
+                while (!pending.isEmpty()) {
+                    wait();
+                }
+            }
+
+            synchronized void onBeginSynthesis(int sampleRate, int audioFormat, int channels) {
+                if (audioOut == null || !wav || headerWritten) return;
+                headerWritten = true;
+
+                // The size of a stream is not known, so the maximum is used.
+                writeAudio(AudioFileUtils.getWavHeader(sampleRate, channels, audioFormat, -1).array());
+            }
+
+            synchronized void onAudioAvailable(byte[] audio) {
+                if (audioOut != null)
+                    writeAudio(audio);
+            }
+
+            private void writeAudio(byte[] audio) {
+                if (audioFailed) return;
+                try {
+                    audioOut.write(audio);
+                } catch (IOException e) {
+                    // The client closed the output, the remaining utterances are still awaited.
+                    Logger.logDebug(LOG_TAG, "TTS stream ended: " + e.getMessage());
+                    audioFailed = true;
+                }
+            }
         }
 
         @Override
@@ -54,20 +269,31 @@ public class TextToSpeechAPI {
         public void onDestroy() {
             Logger.logDebug(LOG_TAG, "onDestroy");
 
-            if (mTts != null)
-                mTts.shutdown();
+            handler.removeCallbacks(idleCheck);
+            for (TtsEngine engine : engines.values()) {
+                engine.tts.shutdown();
+            }
+            engines.clear();
             super.onDestroy();
         }
 
         @Override
-        protected void onHandleIntent(final Intent intent) {
-            Logger.logDebug(LOG_TAG, "onHandleIntent:\n" + IntentUtils.getIntentString(intent));
+        public IBinder onBind(Intent intent) {
+            return null;
+        }
+
+        @Override
+        public int onStartCommand(Intent intent, int flags, int startId) {
+            Logger.logDebug(LOG_TAG, "onStartCommand:\n" + IntentUtils.getIntentString(intent));
+
+            lastStartId = startId;
+            handler.removeCallbacks(idleCheck);
+            final int idleTimeout = Math.max(0, intent.getIntExtra("idle-timeout", DEFAULT_IDLE_TIMEOUT));
 
             final String speechLanguage = intent.getStringExtra("language");
             final String speechRegion = intent.getStringExtra("region");
             final String speechVariant = intent.getStringExtra("variant");
             final String speechEngine = intent.getStringExtra("engine");
-            final float speechPitch = intent.getFloatExtra("pitch", 1.0f);
 
             // STREAM_MUSIC is the default audio stream for TTS, see:
             // http://stackoverflow.com/questions/6877272/what-is-the-default-audio-stream-of-tts/6979025#6979025
@@ -97,111 +323,211 @@ public class TextToSpeechAPI {
             }
             final int streamToUse = streamToUseInt;
 
-            mTts = new TextToSpeech(this, status -> {
-                if (status == TextToSpeech.SUCCESS) {
-                    mTtsLatch.countDown();
-                } else {
-                    Logger.logError(LOG_TAG, "Failed tts initialization: status=" + status);
-                    stopSelf();
-                }
-            }, speechEngine);
-
-            ResultReturner.returnData(this, intent, new ResultReturner.WithInput() {
-                @Override
-                public void writeResult(PrintWriter out) {
+            final boolean listAvailable = "LIST_AVAILABLE".equals(speechEngine);
+            final Locale locale = speechLanguage != null && !listAvailable ? getLocale(speechLanguage, speechRegion, speechVariant) : null;
+            final TtsEngine engine = acquireEngine(listAvailable ? null : speechEngine, locale, idleTimeout);
 
-                    try {
-                        try {
-                            if (!mTtsLatch.await(10, TimeUnit.SECONDS)) {
-                                Logger.logError(LOG_TAG, "Timeout waiting for TTS initialization");
-                                return;
-                            }
-                        } catch (InterruptedException e) {
-                            Logger.logError(LOG_TAG, "Interrupted awaiting TTS initialization");
-                            return;
-                        }
+            if ("stream".equals(intent.getStringExtra("mode")) && !listAvailable) {
+                ResultReturner.returnData(this, intent, new ResultReturner.BinaryOutputWithInput() {
+                    @Override
+                    public void writeResult(OutputStream out) {
+                        runRequest(engine, intent, listAvailable, streamToUse, in, null, out);
+                    }
+                });
+            } else {
+                ResultReturner.returnData(this, intent, new ResultReturner.WithInput() {
+                    @Override
+                    public void writeResult(PrintWriter out) {
+                        runRequest(engine, intent, listAvailable, streamToUse, in, out, null);
+                    }
+                });
+            }
 
-                        if ("LIST_AVAILABLE".equals(speechEngine)) {
-                            try (JsonWriter writer = new JsonWriter(out)) {
-                                writer.setIndent("  ");
-                                String defaultEngineName = mTts.getDefaultEngine();
-                                writer.beginArray();
-                                for (EngineInfo info : mTts.getEngines()) {
-                                    writer.beginObject();
-                                    writer.name("name").value(info.name);
-                                    writer.name("label").value(info.label);
-                                    writer.name("default").value(defaultEngineName.equals(info.name));
-                                    writer.endObject();
-                                }
-                                writer.endArray();
-                            }
-                            out.println();
-                            return;
-                        }
+            return Service.START_NOT_STICKY;
+        }
 
-                        final AtomicInteger ttsDoneUtterancesCount = new AtomicInteger();
+        /**
+         * Speak or synthesize the lines of {@code in} with {@code engine}, and release it after.
+         * Text results are written to {@code out}, and the PCM of the `stream` mode to {@code audioOut}.
+         */
+        void runRequest(TtsEngine engine, Intent intent, boolean listAvailable, int streamToUse,
+                        InputStream in, PrintWriter out, OutputStream audioOut) {
+            try {
+                try {
+                    if (!engine.awaitInit()) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Logger.logError(LOG_TAG, "Interrupted awaiting TTS initialization");
+                    return;
+                }
 
-                        mTts.setOnUtteranceProgressListener(new UtteranceProgressListener() {
-                            @Override
-                            public void onStart(String utteranceId) {
-                                // Ignore.
+                // Requests for the same engine are spoken one after another.
+                synchronized (engine) {
+                    TextToSpeech tts = engine.tts;
+
+                    if (listAvailable) {
+                        try (JsonWriter writer = new JsonWriter(out)) {
+                            writer.setIndent("  ");
+                            String defaultEngineName = tts.getDefaultEngine();
+                            writer.beginArray();
+                            for (EngineInfo info : tts.getEngines()) {
+                                writer.beginObject();
+                                writer.name("name").value(info.name);
+                                writer.name("label").value(info.label);
+                                writer.name("default").value(defaultEngineName.equals(info.name));
+                                writer.endObject();
                             }
+                            writer.endArray();
+                        }
+                        out.println();
+                        return;
+                    }
 
-                            @Override
-                            public void onError(String utteranceId) {
-                                Logger.logError(LOG_TAG, "UtteranceProgressListener.onError() called");
-                                synchronized (ttsDoneUtterancesCount) {
-                                    ttsDoneUtterancesCount.incrementAndGet();
-                                    ttsDoneUtterancesCount.notify();
-                                }
-                            }
+                    String mode = intent.hasExtra("mode") ? intent.getStringExtra("mode") : "speak";
+                    String file = intent.getStringExtra("file");
+                    if (!mode.equals("speak") && !mode.equals("file") && !mode.equals("stream")) {
+                        out.println("Error: Unknown mode '" + mode + "' - only 'speak', 'file' and 'stream' supported");
+                        return;
+                    } else if (mode.equals("file") && file == null) {
+                        out.println("Error: No file was specified");
+                        return;
+                    }
 
-                            @Override
-                            public void onDone(String utteranceId) {
-                                synchronized (ttsDoneUtterancesCount) {
-                                    ttsDoneUtterancesCount.incrementAndGet();
-                                    ttsDoneUtterancesCount.notify();
-                                }
+                    tts.setPitch(intent.getFloatExtra("pitch", 1.0f));
+                    tts.setSpeechRate(intent.getFloatExtra("rate", 1.0f));
+
+                    Bundle params = new Bundle();
+                    params.putInt(Engine.KEY_PARAM_STREAM, streamToUse);
+
+                    SynthesisRequest request = new SynthesisRequest(out, audioOut, intent.getBooleanExtra("wav", false));
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+                        String line;
+                        int index = 0;
+                        // Lines are submitted as they are read, so that synthesis of the previous
+                        // lines runs while the next ones are read.
+                        while ((line = reader.readLine()) != null) {
+                            if (line.isEmpty()) continue;
+
+                            index++;
+                            File outputFile;
+                            if (mode.equals("file")) {
+                                outputFile = getOutputFile(new File(file), index);
+                            } else if (mode.equals("stream")) {
+                                // The audio is written from the callbacks, so the file is not needed.
+                                outputFile = new File("/dev/null");
+                            } else {
+                                outputFile = null;
                             }
-                        });
 
-                        if (speechLanguage != null) {
-                            int setLanguageResult = mTts.setLanguage(getLocale(speechLanguage, speechRegion, speechVariant));
-                            if (setLanguageResult != TextToSpeech.LANG_AVAILABLE) {
-                                Logger.logError(LOG_TAG, "tts.setLanguage('" + speechLanguage + "') returned " + setLanguageResult);
+                            Utterance utterance = new Utterance(engine.key + "-" + engine.nextUtteranceId.incrementAndGet(),
+                                    index, outputFile, request);
+                            request.add(utterance);
+                            engine.utterances.put(utterance.id, utterance);
+
+                            int result = outputFile == null ?
+                                    tts.speak(line, TextToSpeech.QUEUE_ADD, params, utterance.id) :
+                                    tts.synthesizeToFile(line, params, outputFile, utterance.id);
+                            if (result != TextToSpeech.SUCCESS) {
+                                engine.utterances.remove(utterance.id);
+                                request.finish(utterance, TextToSpeech.ERROR);
                             }
                         }
+                    }
 
-                        mTts.setPitch(speechPitch);
-                        mTts.setSpeechRate(intent.getFloatExtra("rate", 1.0f));
-
-                        String utteranceId = "utterance_id";
-                        Bundle params = new Bundle();
-                        params.putInt(Engine.KEY_PARAM_STREAM, streamToUse);
-                        params.putString(Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
+                    request.awaitAll();
+                }
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "TTS error", e);
+            } finally {
+                handler.post(() -> releaseEngine(engine));
+            }
+        }
 
-                        int submittedUtterances = 0;
+        /** Get the file for the utterance at {@code index}, numbered before the extension of {@code file}. */
+        static File getOutputFile(File file, int index) {
+            return AudioFileUtils.getNumberedFile(file, index, ".wav");
+        }
 
-                        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
-                            String line;
-                            while ((line = reader.readLine()) != null) {
-                                if (!line.isEmpty()) {
-                                    submittedUtterances++;
-                                    mTts.speak(line, TextToSpeech.QUEUE_ADD, params, utteranceId);
-                                }
-                            }
-                        }
+        static String getEngineKey(String engineName, Locale locale) {
+            return (engineName != null ? engineName : "") + "|" + (locale != null ? locale.toString() : "");
+        }
 
-                        synchronized (ttsDoneUtterancesCount) {
-                            while (ttsDoneUtterancesCount.get() != submittedUtterances) {
-                                ttsDoneUtterancesCount.wait();
+        /**
+         * Get the warm engine for {@code engineName} and {@code locale}, or start initializing a new
+         * one, and keep it for at least {@code idleTimeout} after the request. Must be called on the
+         * main thread.
+         */
+        TtsEngine acquireEngine(String engineName, Locale locale, int idleTimeout) {
+            activeRequests++;
+            String key = getEngineKey(engineName, locale);
+            TtsEngine engine = engines.get(key);
+            if (engine == null) {
+                Logger.logDebug(LOG_TAG, "Creating TTS engine \"" + key + "\"");
+                final TtsEngine newEngine = new TtsEngine(key);
+                newEngine.tts = new TextToSpeech(this, status -> {
+                    if (status == TextToSpeech.SUCCESS) {
+                        if (locale != null) {
+                            int setLanguageResult = newEngine.tts.setLanguage(locale);
+                            if (setLanguageResult != TextToSpeech.LANG_AVAILABLE) {
+                                Logger.logError(LOG_TAG, "tts.setLanguage('" + locale + "') returned " + setLanguageResult);
                             }
                         }
-                    } catch (Exception e) {
-                        Logger.logStackTraceWithMessage(LOG_TAG, "TTS error", e);
+                        newEngine.initialized = true;
+                    } else {
+                        Logger.logError(LOG_TAG, "Failed tts initialization: status=" + status);
                     }
+                    newEngine.initLatch.countDown();
+                }, engineName);
+                newEngine.tts.setOnUtteranceProgressListener(newEngine.listener);
+                engines.put(key, newEngine);
+                engine = newEngine;
+            }
+            engine.users++;
+            engine.idleTimeout = Math.max(engine.idleTimeout, idleTimeout);
+            return engine;
+        }
+
+        /** Release the engine after a request. Must be called on the main thread. */
+        void releaseEngine(TtsEngine engine) {
+            activeRequests--;
+            engine.users--;
+            engine.lastUsedTime = SystemClock.uptimeMillis();
+            if (!engine.initialized && engine.initLatch.getCount() == 0 && engine.users == 0) {
+                // Do not keep an engine that failed to initialize.
+                engines.remove(engine.key);
+                engine.tts.shutdown();
+            }
+            shutdownIdleEngines();
+        }
+
+        /**
+         * Shut down the engines that were not used for the idle timeout, and stop the service once
+         * none is left. Must be called on the main thread.
+         */
+        void shutdownIdleEngines() {
+            handler.removeCallbacks(idleCheck);
+            long now = SystemClock.uptimeMillis();
+            long nextCheck = Long.MAX_VALUE;
+            Iterator<TtsEngine> iterator = engines.values().iterator();
+            while (iterator.hasNext()) {
+                TtsEngine engine = iterator.next();
+                if (engine.users > 0) continue;
+                long idleUntil = engine.lastUsedTime + engine.idleTimeout;
+                if (idleUntil <= now) {
+                    Logger.logDebug(LOG_TAG, "Shutting down idle TTS engine \"" + engine.key + "\"");
+                    engine.tts.shutdown();
+                    iterator.remove();
+                } else {
+                    nextCheck = Math.min(nextCheck, idleUntil);
                 }
-            });
+            }
+
+            if (nextCheck != Long.MAX_VALUE) {
+                handler.postAtTime(idleCheck, nextCheck);
+            } else if (engines.isEmpty() && activeRequests == 0) {
+                stopSelfResult(lastStartId);
+            }
         }
     }
 
@@ -4,11 +4,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.widget.Toast;
 
 import com.termux.api.TermuxApiReceiver;
+import com.termux.api.util.CameraCharacteristicsCache;
 import com.termux.api.util.ResultReturner;
 import com.termux.shared.logger.Logger;
 
@@ -29,7 +29,7 @@ public class TorchAPI {
     private static void toggleTorch(Context context, boolean enabled) {
         try {
             final CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-            String torchCameraId = getTorchCameraId(cameraManager);
+            String torchCameraId = CameraCharacteristicsCache.getTorchCameraId(context);
 
             if (torchCameraId != null) {
                 cameraManager.setTorchMode(torchCameraId, enabled);
@@ -60,17 +60,4 @@ public class TorchAPI {
             legacyCamera = null;
         }
     }
-
-    private static String getTorchCameraId(CameraManager cameraManager) throws CameraAccessException {
-        String[] cameraIdList =  cameraManager.getCameraIdList();
-        String result = null;
-
-        for (String id : cameraIdList) {
-            if (cameraManager.getCameraCharacteristics(id).get(CameraCharacteristics.FLASH_INFO_AVAILABLE)) {
-                result = id;
-                break;
-            }
-        }
-        return result;
-    }
 }
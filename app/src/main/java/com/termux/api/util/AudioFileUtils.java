@@ -0,0 +1,90 @@
+package com.termux.api.util;
+
+import android.media.AudioFormat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Utils for the audio files written by the APIs, which are saved as numbered files like
+ * `recording-0001.wav` when a recording or synthesis produces more than one, and for the WAV
+ * header of raw PCM.
+ */
+public class AudioFileUtils {
+
+    /** The size in bytes of the header written by {@link #getWavHeader(int, int, int, long)}. */
+    public static final int WAV_HEADER_SIZE = 44;
+
+    /**
+     * Get the file of {@code number} for {@code file}, with the number formatted with at least 4
+     * digits before the extension, like `recording-0001.wav` for `recording.wav`. If {@code file}
+     * has no extension, then {@code defaultExtension} is used.
+     */
+    @NonNull
+    public static File getNumberedFile(@NonNull File file, int number, @NonNull String defaultExtension) {
+        String extension = getExtension(file);
+        String baseName = file.getName().substring(0, file.getName().length() - extension.length());
+        return new File(file.getParentFile(), baseName + String.format(Locale.ROOT, "-%04d", number) +
+                (extension.isEmpty() ? defaultExtension : extension));
+    }
+
+    /**
+     * Get an existing numbered file of {@code file} as returned by
+     * {@link #getNumberedFile(File, int, String)}, or {@code null} if there is none.
+     */
+    @Nullable
+    public static File getExistingNumberedFile(@NonNull File file, @NonNull String defaultExtension) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null) return null;
+
+        String extension = getExtension(file);
+        String baseName = file.getName().substring(0, file.getName().length() - extension.length());
+        Pattern numberedPattern = Pattern.compile(Pattern.quote(baseName) + "-\\d{4,}" +
+                Pattern.quote(extension.isEmpty() ? defaultExtension : extension));
+        for (File existing : files) {
+            if (numberedPattern.matcher(existing.getName()).matches()) return existing;
+        }
+        return null;
+    }
+
+    /** Get the extension of {@code file} with the dot, or an empty string if it has none. */
+    @NonNull
+    public static String getExtension(@NonNull File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot) : "";
+    }
+
+    /**
+     * Get the canonical 44 byte WAV header for PCM audio, ready to be written.
+     *
+     * @param encoding The {@link AudioFormat} encoding of the samples, float samples are tagged
+     *                 as IEEE float and all others as integer PCM.
+     * @param dataSize The size in bytes of the samples, or `-1` if it is not known, like for a
+     *                 stream, in which case the maximum size is written.
+     */
+    @NonNull
+    public static ByteBuffer getWavHeader(int sampleRate, int channels, int encoding, long dataSize) {
+        int bitsPerSample = encoding == AudioFormat.ENCODING_PCM_8BIT ? 8 :
+                encoding == AudioFormat.ENCODING_PCM_FLOAT ? 32 : 16;
+        int blockAlign = channels * bitsPerSample / 8;
+
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(dataSize < 0 ? -1 : (int) (dataSize + WAV_HEADER_SIZE - 8));
+        header.put(new byte[]{'W', 'A', 'V', 'E', 'f', 'm', 't', ' '}).putInt(16);
+        header.putShort((short) (encoding == AudioFormat.ENCODING_PCM_FLOAT ? 3 : 1));
+        header.putShort((short) channels).putInt(sampleRate).putInt(sampleRate * blockAlign);
+        header.putShort((short) blockAlign).putShort((short) bitsPerSample);
+        header.put(new byte[]{'d', 'a', 't', 'a'}).putInt(dataSize < 0 ? -1 : (int) dataSize);
+        header.flip();
+        return header;
+    }
+
+}
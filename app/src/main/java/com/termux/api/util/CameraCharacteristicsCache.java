@@ -0,0 +1,115 @@
+package com.termux.api.util;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.termux.shared.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the camera ids and their {@link CameraCharacteristics} for the app process, so that the
+ * camera APIs do not need binder calls into the camera service to look up the facing, output sizes,
+ * auto exposure modes, flash or orientation of a camera on every call.
+ *
+ * The characteristics of a camera never change, so only the id list has to be refreshed, which
+ * happens when a {@link CameraManager.AvailabilityCallback} reports a camera that is not in the list,
+ * like an external camera that was connected, or when getting the characteristics of a listed
+ * camera fails, like for an external camera that was disconnected.
+ *
+ * - https://developer.android.com/reference/android/hardware/camera2/CameraManager.AvailabilityCallback
+ */
+public class CameraCharacteristicsCache {
+
+    private static final String LOG_TAG = "CameraCharacteristicsCache";
+
+    private static List<String> cameraIds;
+    private static final Map<String, CameraCharacteristics> CHARACTERISTICS = new HashMap<>();
+    private static boolean torchCameraIdResolved;
+    private static String torchCameraId;
+    private static CameraManager.AvailabilityCallback availabilityCallback;
+
+    /** Get the ids of all cameras, in the order of {@link CameraManager#getCameraIdList()}. */
+    @NonNull
+    public static synchronized List<String> getCameraIds(@NonNull Context context) throws CameraAccessException {
+        CameraManager manager = getCameraManager(context);
+        if (cameraIds == null) {
+            cameraIds = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(manager.getCameraIdList())));
+            Logger.logDebug(LOG_TAG, "Cached camera ids " + cameraIds);
+        }
+        return cameraIds;
+    }
+
+    /** Get the characteristics of the camera with {@code cameraId}. */
+    @NonNull
+    public static synchronized CameraCharacteristics getCameraCharacteristics(@NonNull Context context, @NonNull String cameraId)
+            throws CameraAccessException {
+        CameraCharacteristics characteristics = CHARACTERISTICS.get(cameraId);
+        if (characteristics == null) {
+            try {
+                characteristics = getCameraManager(context).getCameraCharacteristics(cameraId);
+            } catch (CameraAccessException | IllegalArgumentException e) {
+                // The camera may have been disconnected.
+                invalidateCameraIds();
+                throw e;
+            }
+            CHARACTERISTICS.put(cameraId, characteristics);
+        }
+        return characteristics;
+    }
+
+    /** Get the id of the first camera with a flash unit, or `null` if there is none. */
+    @Nullable
+    public static synchronized String getTorchCameraId(@NonNull Context context) throws CameraAccessException {
+        if (!torchCameraIdResolved) {
+            torchCameraId = null;
+            for (String id : getCameraIds(context)) {
+                Boolean flashAvailable = getCameraCharacteristics(context, id).get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+                if (flashAvailable != null && flashAvailable) {
+                    torchCameraId = id;
+                    break;
+                }
+            }
+            torchCameraIdResolved = true;
+        }
+        return torchCameraId;
+    }
+
+    private static synchronized void invalidateCameraIds() {
+        Logger.logDebug(LOG_TAG, "Invalidating cached camera ids");
+        cameraIds = null;
+        torchCameraIdResolved = false;
+        torchCameraId = null;
+    }
+
+    private static CameraManager getCameraManager(Context context) {
+        CameraManager manager = (CameraManager) context.getApplicationContext().getSystemService(Context.CAMERA_SERVICE);
+        if (availabilityCallback == null) {
+            availabilityCallback = new CameraManager.AvailabilityCallback() {
+                @Override
+                public void onCameraAvailable(@NonNull String cameraId) {
+                    synchronized (CameraCharacteristicsCache.class) {
+                        if (cameraIds != null && !cameraIds.contains(cameraId)) {
+                            invalidateCameraIds();
+                        }
+                    }
+                }
+            };
+            manager.registerAvailabilityCallback(availabilityCallback, new Handler(Looper.getMainLooper()));
+        }
+        return manager;
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.termux.api.util;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.termux.shared.logger.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts changes to a content {@link Uri} with a {@link ContentObserver} so that APIs can hand out
+ * a change token to the caller and skip querying the provider entirely if nothing has changed
+ * since the token was issued.
+ *
+ * The token is in the format `<generation>-<count>`, where `generation` is the time the observer
+ * was registered. Since observers only live as long as the app process, a token from a previous
+ * process will never match and the caller will get a full delta query, which is always safe.
+ *
+ * - https://developer.android.com/reference/android/database/ContentObserver
+ */
+public class ContentChangeTracker {
+
+    private static final String LOG_TAG = "ContentChangeTracker";
+
+    private static final Map<Uri, ContentChangeTracker> TRACKERS = new HashMap<>();
+
+    private final long generation;
+    private final AtomicLong changeCount = new AtomicLong();
+
+    private ContentChangeTracker() {
+        this.generation = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the current change token for {@code uri}, registering an observer for it if this is the
+     * first time it is requested in this process.
+     *
+     * The token must be fetched before querying the provider, so that a change that happens while
+     * the query is running invalidates the returned token.
+     */
+    public static synchronized String getChangeToken(@NonNull Context context, @NonNull Uri uri) {
+        ContentChangeTracker tracker = TRACKERS.get(uri);
+        if (tracker == null) {
+            tracker = new ContentChangeTracker();
+            final ContentChangeTracker newTracker = tracker;
+            context.getApplicationContext().getContentResolver().registerContentObserver(uri, true,
+                    new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            newTracker.changeCount.incrementAndGet();
+                        }
+                    });
+            TRACKERS.put(uri, tracker);
+            Logger.logDebug(LOG_TAG, "Registered content observer for \"" + uri + "\"");
+        }
+        return tracker.generation + "-" + tracker.changeCount.get();
+    }
+
+}
@@ -2,10 +2,21 @@ package com.termux.api.util;
 
 import android.app.PendingIntent;
 import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.termux.shared.shell.command.ExecutionCommand;
+import com.termux.shared.termux.TermuxConstants;
+import com.termux.shared.termux.TermuxConstants.TERMUX_APP.TERMUX_SERVICE;
 import com.termux.shared.termux.settings.preferences.TermuxPreferenceConstants.TERMUX_API_APP;
 import com.termux.shared.termux.settings.preferences.TermuxAPIAppSharedPreferences;
 
+import java.io.File;
+
 public class PluginUtils {
 
     /**
@@ -33,4 +44,55 @@ public class PluginUtils {
         return nextPendingIntentRequestCode;
     }
 
+    /**
+     * Check that the script at {@code scriptPath} can be run with {@link #runScript}.
+     *
+     * @param scriptPath The path of the script.
+     * @return Returns the error message if the script cannot be run, otherwise `null`.
+     */
+    @Nullable
+    public static String getScriptFileError(@NonNull String scriptPath) {
+        File file = new File(scriptPath);
+        String fileCheckMsg;
+        if (!file.isFile()) {
+            fileCheckMsg = "No such file: %s";
+        } else if (!file.canRead()) {
+            fileCheckMsg = "Cannot read file: %s";
+        } else if (!file.canExecute()) {
+            fileCheckMsg = "Cannot execute file: %s";
+        } else {
+            return null;
+        }
+        return String.format(fileCheckMsg, scriptPath);
+    }
+
+    /**
+     * Run the script at {@code scriptPath} in the background with the termux app shell runner.
+     *
+     * @param context The {@link Context} for operations.
+     * @param scriptPath The absolute path of the script.
+     * @param arguments The arguments for the script, or `null` for none.
+     */
+    public static void runScript(@NonNull Context context, @NonNull String scriptPath, @Nullable String[] arguments) {
+        ExecutionCommand executionCommand = new ExecutionCommand();
+        executionCommand.executableUri = new Uri.Builder().scheme(TERMUX_SERVICE.URI_SCHEME_SERVICE_EXECUTE).path(scriptPath).build();
+        executionCommand.arguments = arguments;
+        executionCommand.runner = ExecutionCommand.Runner.APP_SHELL.getName();
+
+        // Create execution intent with the action TERMUX_SERVICE#ACTION_SERVICE_EXECUTE to be sent to the TERMUX_SERVICE
+        Intent executionIntent = new Intent(TERMUX_SERVICE.ACTION_SERVICE_EXECUTE, executionCommand.executableUri);
+        executionIntent.setClassName(TermuxConstants.TERMUX_PACKAGE_NAME, TermuxConstants.TERMUX_APP.TERMUX_SERVICE_NAME);
+        if (executionCommand.arguments != null)
+            executionIntent.putExtra(TERMUX_SERVICE.EXTRA_ARGUMENTS, executionCommand.arguments);
+        executionIntent.putExtra(TERMUX_SERVICE.EXTRA_RUNNER, executionCommand.runner);
+        executionIntent.putExtra(TERMUX_SERVICE.EXTRA_BACKGROUND, true); // Also pass in case user using termux-app version < 0.119.0
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // https://developer.android.com/about/versions/oreo/background.html
+            context.startForegroundService(executionIntent);
+        } else {
+            context.startService(executionIntent);
+        }
+    }
+
 }
@@ -87,6 +87,17 @@ public abstract class ResultReturner {
         }
     }
 
+    /**
+     * Possible subclass of {@link BinaryOutput} when input is also to be read from {@link #SOCKET_INPUT_EXTRA}.
+     */
+    public static abstract class BinaryOutputWithInput extends BinaryOutput {
+        protected InputStream in;
+
+        public void setInput(InputStream inputStream) {
+            this.in = inputStream;
+        }
+    }
+
     /**
      * Possible marker interface for a {@link ResultWriter} when input is to be read from {@link #SOCKET_INPUT_EXTRA}.
      */
@@ -258,13 +269,17 @@ public abstract class ResultReturner {
                         BinaryOutput bout = (BinaryOutput) resultWriter;
                         bout.setOutput(outputSocket.getOutputStream());
                     }
-                    if (resultWriter instanceof WithInput) {
+                    if (resultWriter instanceof WithInput || resultWriter instanceof BinaryOutputWithInput) {
                         try (LocalSocket inputSocket = new LocalSocket()) {
                             String inputSocketAddress = intent.getStringExtra(SOCKET_INPUT_EXTRA);
                             if (inputSocketAddress == null || inputSocketAddress.isEmpty())
                                 throw new IOException("Missing '" + SOCKET_INPUT_EXTRA + "' extra");
                             inputSocket.connect(getApiLocalSocketAddress(ResultReturner.context, "input", inputSocketAddress));
-                            ((WithInput) resultWriter).setInput(inputSocket.getInputStream());
+                            if (resultWriter instanceof WithInput) {
+                                ((WithInput) resultWriter).setInput(inputSocket.getInputStream());
+                            } else {
+                                ((BinaryOutputWithInput) resultWriter).setInput(inputSocket.getInputStream());
+                            }
                             resultWriter.writeResult(writer);
                         }
                     } else {
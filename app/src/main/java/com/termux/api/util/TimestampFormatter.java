@@ -0,0 +1,90 @@
+package com.termux.api.util;
+
+import android.util.JsonWriter;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Formatter for timestamps written by the APIs in the `yyyy-MM-dd HH:mm:ss` format in the default
+ * time zone, or as raw epoch milliseconds.
+ *
+ * Unlike {@link java.text.SimpleDateFormat}, formatting does not create a {@link java.util.Date}
+ * or {@link java.util.Calendar} per call, the date fields are computed with integer arithmetic
+ * into a {@code char} buffer that is reused by the instance. Digits are always ASCII regardless
+ * of the default locale.
+ *
+ * An instance must only be used by a single thread, normally it is created once per API call and
+ * used for all the rows written by it.
+ */
+public class TimestampFormatter {
+
+    public static final String PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private final TimeZone timeZone;
+    private final boolean epochMillis;
+    private final char[] buffer = new char[PATTERN.length()];
+
+    /**
+     * @param epochMillis If {@code true}, then {@link #write(JsonWriter, long)} writes timestamps
+     *                    as raw epoch milliseconds numbers instead of formatted strings.
+     */
+    public TimestampFormatter(boolean epochMillis) {
+        this.timeZone = TimeZone.getDefault();
+        this.epochMillis = epochMillis;
+    }
+
+    /** Write {@code millis} to {@code out} as a formatted string or as raw epoch milliseconds. */
+    public void write(@NonNull JsonWriter out, long millis) throws IOException {
+        if (epochMillis) {
+            out.value(millis);
+        } else {
+            out.value(format(millis));
+        }
+    }
+
+    /** Format {@code millis} in the {@link #PATTERN} format. */
+    @NonNull
+    public String format(long millis) {
+        long local = millis + timeZone.getOffset(millis);
+        long days = Math.floorDiv(local, MILLIS_PER_DAY);
+        int secondOfDay = (int) (Math.floorMod(local, MILLIS_PER_DAY) / 1000);
+
+        // Civil date from days since epoch.
+        // - https://howardhinnant.github.io/date_algorithms.html#civil_from_days
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        putDigits(buffer, 0, (int) year, 4);
+        buffer[4] = '-';
+        putDigits(buffer, 5, month, 2);
+        buffer[7] = '-';
+        putDigits(buffer, 8, day, 2);
+        buffer[10] = ' ';
+        putDigits(buffer, 11, secondOfDay / 3600, 2);
+        buffer[13] = ':';
+        putDigits(buffer, 14, (secondOfDay / 60) % 60, 2);
+        buffer[16] = ':';
+        putDigits(buffer, 17, secondOfDay % 60, 2);
+        return new String(buffer);
+    }
+
+    private static void putDigits(char[] buffer, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+}